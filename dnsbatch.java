@@ -0,0 +1,114 @@
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Resolves a file of names, one per line, on several threads and streams one
+// structured result per name through a resultwriter
+public class dnsbatch {
+
+    static final int QUEUE_CAPACITY = 65536;
+
+    private final BufferedReader names;
+    private final resultwriter writer;
+    private final String rootServerIP;
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Exception failure;
+
+    dnsbatch(BufferedReader names, resultwriter writer, String rootServerIP) {
+        this.names = names;
+        this.writer = writer;
+        this.rootServerIP = rootServerIP;
+    }
+
+    // Next non-blank, non-comment name, or null at end of input
+    private String nextName() throws IOException {
+        synchronized (names) {
+            String line;
+            while ((line = names.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    return line;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void work() {
+        try {
+            String name;
+            while (failure == null && (name = nextName()) != null) {
+                mydns.ResolutionResult result = mydns.resolve(name, rootServerIP, false);
+                resolved.incrementAndGet();
+                if (result.error != null) {
+                    failures.incrementAndGet();
+                }
+                writer.write(result);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        }
+    }
+
+    void run(int threads) throws Exception {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(this::work, "dnsbatch-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || args.length > 7) {
+            System.out.println("Usage: dnsbatch names-file root-dns-ip output-file [jsonl|csv|bin] [threads] "
+                               + "[port [trust-anchor-file]]");
+            System.out.println("Use - as output-file to write to standard output.");
+            System.exit(1);
+        }
+
+        String namesPath = args[0];
+        String rootDnsIp = args[1];
+        String outputPath = args[2];
+        String format = args.length > 3 ? args[3] : resultwriter.JSONL;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+        if (threads < 1) {
+            System.out.println("Usage: dnsbatch names-file root-dns-ip output-file [jsonl|csv|bin] [threads] "
+                               + "[port [trust-anchor-file]]");
+            System.out.println("threads must be at least 1");
+            System.exit(1);
+        }
+        if (args.length > 5) {
+            mydns.dnsPort = Integer.parseInt(args[5]);
+        }
+        if (args.length > 6) {
+            mydns.validator = dnssec.Validator.load(args[6]);
+        }
+        mydns.quiet = true;
+
+        long start = System.nanoTime();
+        OutputStream output = outputPath.equals("-") ? System.out : new FileOutputStream(outputPath);
+        dnsbatch batch;
+        try (BufferedReader names = new BufferedReader(new FileReader(namesPath));
+             resultwriter writer = new resultwriter(output, format, QUEUE_CAPACITY)) {
+            batch = new dnsbatch(names, writer, rootDnsIp);
+            batch.run(threads);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.err.printf("Resolved %d names (%d failed) in %.2f s, %.1f names/s%n",
+                          batch.resolved.get(), batch.failures.get(), seconds, batch.resolved.get() / seconds);
+    }
+}
@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// Load generator: resolves Zipf-distributed names against an in-process fakedns
+// hierarchy and reports throughput and the latency distribution
+public class dnsbench {
+
+    // Per-query transport settings; short enough that simulated loss shows up as tail latency
+    static final int TIMEOUT_MS = 200;
+    static final int RETRIES = 2;
+
+    // Samples ranks 0..n-1 with probability proportional to 1 / (rank + 1)^exponent
+    static class ZipfSampler {
+        double[] cdf;
+
+        ZipfSampler(int n, double exponent) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0 / Math.pow(i + 1, exponent);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                cdf[i] /= sum;
+            }
+        }
+
+        int sample(Random random) {
+            int index = Arrays.binarySearch(cdf, random.nextDouble());
+            int rank = index >= 0 ? index : -index - 1;
+            return Math.min(rank, cdf.length - 1);
+        }
+    }
+
+    // What one worker thread measured
+    static class WorkerResult {
+        long[] latencies;
+        int count;
+        int failures;
+        int insecure;   // answered without an unbroken chain of trust
+        long hops;
+        String firstError;
+    }
+
+    static WorkerResult runWorker(List<String> names, ZipfSampler sampler, String rootServerIP,
+                                  int queries, long seed) {
+        WorkerResult result = new WorkerResult();
+        result.latencies = new long[queries];
+        Random random = new Random(seed);
+
+        for (int i = 0; i < queries; i++) {
+            String name = names.get(sampler.sample(random));
+            mydns.ResolutionResult resolution = mydns.resolve(name, rootServerIP, false);
+
+            result.latencies[result.count++] = resolution.elapsedNanos;
+            result.hops += resolution.hops;
+            if (dnssec.INSECURE.equals(resolution.security)) {
+                result.insecure++;
+            }
+            if (resolution.error != null) {
+                result.failures++;
+                if (result.firstError == null) {
+                    result.firstError = name + ": " + resolution.error;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Split queries across threads and wait for all of them
+    static List<WorkerResult> runAll(List<String> names, ZipfSampler sampler, String rootServerIP,
+                                     int queries, int threads, long seed) throws InterruptedException {
+        WorkerResult[] results = new WorkerResult[threads];
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            final int share = queries / threads + (t < queries % threads ? 1 : 0);
+            workers[t] = new Thread(() -> results[index] = runWorker(names, sampler, rootServerIP, share, seed + index),
+                                    "dnsbench-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return Arrays.asList(results);
+    }
+
+    static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 4) {
+            System.out.println("Usage: dnsbench config-file [queries] [threads] [zipf-exponent]");
+            System.exit(1);
+        }
+
+        String configPath = args[0];
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        double exponent = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+        if (queries < 1 || threads < 1) {
+            System.out.println("Usage: dnsbench config-file [queries] [threads] [zipf-exponent]");
+            System.out.println("queries and threads must be at least 1");
+            System.exit(1);
+        }
+
+        fakedns.Config config = fakedns.loadConfig(configPath);
+        if (config.hostNames.isEmpty()) {
+            System.out.println("No host names in " + configPath);
+            System.exit(1);
+        }
+
+        // Popularity order is a seeded shuffle so the hot names span every zone
+        List<String> names = new ArrayList<>(config.hostNames);
+        Collections.shuffle(names, new Random(config.seed));
+        ZipfSampler sampler = new ZipfSampler(names.size(), exponent);
+        String rootServerIP = config.rootServerIP();
+
+        mydns.dnsPort = config.port;
+        mydns.queryTimeoutMs = TIMEOUT_MS;
+        mydns.queryRetries = RETRIES;
+        mydns.quiet = true;
+
+        fakedns server = fakedns.start(config);
+        if (server.trustAnchors() != null) {
+            mydns.validator = new dnssec.Validator(server.trustAnchors());
+        }
+        try {
+            // Warm up the JIT and socket paths before measuring
+            runAll(names, sampler, rootServerIP, Math.max(threads, queries / 10), threads, config.seed ^ 0x5eed);
+
+            long start = System.nanoTime();
+            List<WorkerResult> results = runAll(names, sampler, rootServerIP, queries, threads, config.seed);
+            long wall = System.nanoTime() - start;
+
+            long[] latencies = new long[queries];
+            int offset = 0;
+            int failures = 0;
+            int insecure = 0;
+            long hops = 0;
+            long total = 0;
+            String firstError = null;
+            for (WorkerResult result : results) {
+                System.arraycopy(result.latencies, 0, latencies, offset, result.count);
+                offset += result.count;
+                failures += result.failures;
+                insecure += result.insecure;
+                hops += result.hops;
+                if (firstError == null) {
+                    firstError = result.firstError;
+                }
+            }
+            for (long latency : latencies) {
+                total += latency;
+            }
+            Arrays.sort(latencies);
+
+            System.out.println("Names: " + names.size() + ", Zipf exponent " + exponent);
+            System.out.printf("Queries: %d (%d failed) in %.2f s using %d threads%n",
+                              queries, failures, wall / 1e9, threads);
+            System.out.printf("Throughput: %.1f QPS%n", queries / (wall / 1e9));
+            System.out.printf("Mean hops: %.2f%n", (double) hops / queries);
+            System.out.printf("Latency (ms): mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                              millis(total / queries),
+                              millis(percentile(latencies, 50)),
+                              millis(percentile(latencies, 90)),
+                              millis(percentile(latencies, 99)),
+                              millis(percentile(latencies, 99.9)),
+                              millis(latencies[latencies.length - 1]));
+            if (mydns.validator != null) {
+                System.out.printf("DNSSEC: %d insecure answers, %d signatures verified, %d memoized%n",
+                                  insecure, mydns.validator.verifications.get(), mydns.validator.memoHits.get());
+            }
+            if (firstError != null) {
+                System.out.println("First failure: " + firstError);
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,1532 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// DNSSEC validation (RFC 4033-4035, RFC 5155) with a cached chain of trust.
+// Validated DS and DNSKEY sets are cached per zone until their TTL or signature
+// expires, and every signature check is memoized, so a warm validator spends a
+// SHA-256 over the signed data per RRset instead of an RSA/ECDSA verification.
+public class dnssec {
+
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_OPT = 41;
+    static final int TYPE_DS = 43;
+    static final int TYPE_RRSIG = 46;
+    static final int TYPE_NSEC = 47;
+    static final int TYPE_DNSKEY = 48;
+    static final int TYPE_NSEC3 = 50;
+
+    static final int RSASHA256 = 8;
+    static final int RSASHA512 = 10;
+    static final int ECDSAP256SHA256 = 13;
+    static final int ECDSAP384SHA384 = 14;
+
+    static final String SECURE = "secure";
+    static final String INSECURE = "insecure";
+    static final String BOGUS = "bogus";
+
+    static final int MAX_NSEC3_ITERATIONS = 150; // RFC 9276: more is treated as unusable
+    static final int MAX_MEMO_ENTRIES = 100000;
+    static final int MAX_CNAME_CHAIN = 16;
+
+    // Signature checks run here so one response's RRsets verify on all cores
+    private static final ExecutorService VERIFY_POOL =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "dnssec-verify");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // ---------------------------------------------------------------- names
+
+    // Lower-case and strip the trailing dot; the root becomes ""
+    static String canonical(String name) {
+        String result = name.toLowerCase();
+        if (result.endsWith(".")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    static String[] labels(String name) {
+        return name.isEmpty() ? new String[0] : name.split("\\.");
+    }
+
+    static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    // RFC 4034 section 6.1 ordering: compare labels right to left as lower-case bytes
+    static int compareCanonical(String a, String b) {
+        String[] la = labels(canonical(a));
+        String[] lb = labels(canonical(b));
+        int i = la.length - 1;
+        int j = lb.length - 1;
+        while (i >= 0 && j >= 0) {
+            int c = compareBytes(la[i].getBytes(StandardCharsets.UTF_8), lb[j].getBytes(StandardCharsets.UTF_8));
+            if (c != 0) {
+                return c;
+            }
+            i--;
+            j--;
+        }
+        return Integer.compare(la.length, lb.length);
+    }
+
+    static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    // ---------------------------------------------------------------- record data
+
+    static class RRSIGRecord {
+        int typeCovered;
+        int algorithm;
+        int labels;
+        long originalTtl;
+        long expiration;
+        long inception;
+        int keyTag;
+        String signer;
+        byte[] signature;
+        byte[] header; // RDATA up to the signature, signer name in canonical form
+
+        static RRSIGRecord parse(byte[] rdata) {
+            RRSIGRecord sig = new RRSIGRecord();
+            ByteBuffer buffer = ByteBuffer.wrap(rdata).order(ByteOrder.BIG_ENDIAN);
+            sig.typeCovered = buffer.getShort() & 0xFFFF;
+            sig.algorithm = buffer.get() & 0xFF;
+            sig.labels = buffer.get() & 0xFF;
+            sig.originalTtl = buffer.getInt() & 0xFFFFFFFFL;
+            sig.expiration = buffer.getInt() & 0xFFFFFFFFL;
+            sig.inception = buffer.getInt() & 0xFFFFFFFFL;
+            sig.keyTag = buffer.getShort() & 0xFFFF;
+            mydns.NameResult signer = mydns.parseName(18, rdata);
+            sig.signer = canonical(signer.name);
+            sig.signature = Arrays.copyOfRange(rdata, signer.nextIndex, rdata.length);
+
+            byte[] signerWire = mydns.encodeName(sig.signer);
+            sig.header = new byte[18 + signerWire.length];
+            System.arraycopy(rdata, 0, sig.header, 0, 18);
+            System.arraycopy(signerWire, 0, sig.header, 18, signerWire.length);
+            return sig;
+        }
+
+        boolean currentlyValid() {
+            long now = System.currentTimeMillis() / 1000;
+            return inception <= now && now <= expiration;
+        }
+    }
+
+    static class DNSKEYRecord {
+        int flags;
+        int protocol;
+        int algorithm;
+        byte[] key;
+        byte[] rdata;
+        int keyTag;
+        private volatile PublicKey publicKey; // decoded once per cached key
+
+        static DNSKEYRecord parse(byte[] rdata) {
+            DNSKEYRecord dnskey = new DNSKEYRecord();
+            dnskey.flags = ((rdata[0] & 0xFF) << 8) | (rdata[1] & 0xFF);
+            dnskey.protocol = rdata[2] & 0xFF;
+            dnskey.algorithm = rdata[3] & 0xFF;
+            dnskey.key = Arrays.copyOfRange(rdata, 4, rdata.length);
+            dnskey.rdata = rdata;
+            dnskey.keyTag = keyTag(rdata);
+            return dnskey;
+        }
+
+        boolean isZoneKey() {
+            return (flags & 0x0100) != 0 && protocol == 3;
+        }
+
+        PublicKey publicKey() throws GeneralSecurityException {
+            if (publicKey == null) {
+                publicKey = decodePublicKey(algorithm, key);
+            }
+            return publicKey;
+        }
+    }
+
+    static class DSRecord {
+        int keyTag;
+        int algorithm;
+        int digestType;
+        byte[] digest;
+
+        static DSRecord parse(byte[] rdata) {
+            DSRecord ds = new DSRecord();
+            ds.keyTag = ((rdata[0] & 0xFF) << 8) | (rdata[1] & 0xFF);
+            ds.algorithm = rdata[2] & 0xFF;
+            ds.digestType = rdata[3] & 0xFF;
+            ds.digest = Arrays.copyOfRange(rdata, 4, rdata.length);
+            return ds;
+        }
+
+        boolean matches(String owner, DNSKEYRecord dnskey) {
+            if (keyTag != dnskey.keyTag || algorithm != dnskey.algorithm) {
+                return false;
+            }
+            byte[] expected = dsDigest(owner, dnskey.rdata, digestType);
+            return expected != null && MessageDigest.isEqual(expected, digest);
+        }
+    }
+
+    static class NSECRecord {
+        String owner;
+        String next;
+        BitSet types;
+
+        static NSECRecord parse(String owner, byte[] rdata) {
+            NSECRecord nsec = new NSECRecord();
+            nsec.owner = canonical(owner);
+            mydns.NameResult next = mydns.parseName(0, rdata);
+            nsec.next = canonical(next.name);
+            nsec.types = parseTypeBitmap(rdata, next.nextIndex);
+            return nsec;
+        }
+
+        // True if name sorts strictly between owner and next, allowing for the wrap at the apex
+        boolean covers(String name) {
+            if (compareCanonical(owner, name) >= 0) {
+                return false;
+            }
+            return compareCanonical(next, owner) <= 0 || compareCanonical(name, next) < 0;
+        }
+    }
+
+    static class NSEC3Record {
+        String zone;
+        byte[] ownerHash;
+        int hashAlgorithm;
+        int flags;
+        int iterations;
+        byte[] salt;
+        byte[] nextHash;
+        BitSet types;
+
+        static NSEC3Record parse(String owner, byte[] rdata) {
+            NSEC3Record nsec3 = new NSEC3Record();
+            String name = canonical(owner);
+            int dot = name.indexOf('.');
+            nsec3.zone = dot < 0 ? "" : name.substring(dot + 1);
+            nsec3.ownerHash = base32hexDecode(dot < 0 ? name : name.substring(0, dot));
+            nsec3.hashAlgorithm = rdata[0] & 0xFF;
+            nsec3.flags = rdata[1] & 0xFF;
+            nsec3.iterations = ((rdata[2] & 0xFF) << 8) | (rdata[3] & 0xFF);
+            int saltLength = rdata[4] & 0xFF;
+            nsec3.salt = Arrays.copyOfRange(rdata, 5, 5 + saltLength);
+            int hashLength = rdata[5 + saltLength] & 0xFF;
+            int hashStart = 6 + saltLength;
+            nsec3.nextHash = Arrays.copyOfRange(rdata, hashStart, hashStart + hashLength);
+            nsec3.types = parseTypeBitmap(rdata, hashStart + hashLength);
+            return nsec3;
+        }
+
+        boolean usable() {
+            return hashAlgorithm == 1 && iterations <= MAX_NSEC3_ITERATIONS && ownerHash != null;
+        }
+
+        boolean optOut() {
+            return (flags & 0x01) != 0;
+        }
+
+        byte[] hash(String name) {
+            return nsec3Hash(name, salt, iterations);
+        }
+
+        boolean matches(String name) {
+            return mydns.inZone(name, zone) && Arrays.equals(ownerHash, hash(name));
+        }
+
+        boolean covers(String name) {
+            if (!mydns.inZone(name, zone)) {
+                return false;
+            }
+            byte[] h = hash(name);
+            if (compareBytes(ownerHash, h) >= 0) {
+                return compareBytes(nextHash, ownerHash) <= 0 && compareBytes(h, nextHash) < 0;
+            }
+            return compareBytes(nextHash, ownerHash) <= 0 || compareBytes(h, nextHash) < 0;
+        }
+    }
+
+    // RFC 4034 appendix B
+    static int keyTag(byte[] dnskeyRdata) {
+        long accumulator = 0;
+        for (int i = 0; i < dnskeyRdata.length; i++) {
+            accumulator += (i & 1) == 0 ? (dnskeyRdata[i] & 0xFF) << 8 : dnskeyRdata[i] & 0xFF;
+        }
+        accumulator += (accumulator >> 16) & 0xFFFF;
+        return (int) (accumulator & 0xFFFF);
+    }
+
+    // DS digest over owner name and DNSKEY RDATA, or null for an unsupported digest type
+    static byte[] dsDigest(String owner, byte[] dnskeyRdata, int digestType) {
+        String algorithm;
+        switch (digestType) {
+            case 1: algorithm = "SHA-1"; break;
+            case 2: algorithm = "SHA-256"; break;
+            case 4: algorithm = "SHA-384"; break;
+            default: return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            digest.update(mydns.encodeName(canonical(owner)));
+            digest.update(dnskeyRdata);
+            return digest.digest();
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    // RFC 5155 section 5: iterated SHA-1 of the canonical wire name and salt
+    static byte[] nsec3Hash(String name, byte[] salt, int iterations) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(mydns.encodeName(canonical(name)));
+            sha1.update(salt);
+            byte[] hash = sha1.digest();
+            for (int i = 0; i < iterations; i++) {
+                sha1.update(hash);
+                sha1.update(salt);
+                hash = sha1.digest();
+            }
+            return hash;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-1 unavailable", e);
+        }
+    }
+
+    private static final String BASE32HEX = "0123456789abcdefghijklmnopqrstuv";
+
+    static String base32hexEncode(byte[] data) {
+        StringBuilder out = new StringBuilder();
+        int buffer = 0;
+        int bits = 0;
+        for (byte b : data) {
+            buffer = (buffer << 8) | (b & 0xFF);
+            bits += 8;
+            while (bits >= 5) {
+                out.append(BASE32HEX.charAt((buffer >> (bits - 5)) & 0x1F));
+                bits -= 5;
+            }
+        }
+        if (bits > 0) {
+            out.append(BASE32HEX.charAt((buffer << (5 - bits)) & 0x1F));
+        }
+        return out.toString();
+    }
+
+    // Decoded bytes, or null if the label is not base32hex
+    static byte[] base32hexDecode(String text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int buffer = 0;
+        int bits = 0;
+        for (char c : text.toLowerCase().toCharArray()) {
+            int value = BASE32HEX.indexOf(c);
+            if (value < 0) {
+                return null;
+            }
+            buffer = (buffer << 5) | value;
+            bits += 5;
+            if (bits >= 8) {
+                out.write((buffer >> (bits - 8)) & 0xFF);
+                bits -= 8;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static BitSet parseTypeBitmap(byte[] rdata, int index) {
+        BitSet types = new BitSet();
+        while (index + 2 <= rdata.length) {
+            int window = rdata[index] & 0xFF;
+            int length = rdata[index + 1] & 0xFF;
+            index += 2;
+            for (int i = 0; i < length && index + i < rdata.length; i++) {
+                int bits = rdata[index + i] & 0xFF;
+                for (int bit = 0; bit < 8; bit++) {
+                    if ((bits & (0x80 >> bit)) != 0) {
+                        types.set(window * 256 + i * 8 + bit);
+                    }
+                }
+            }
+            index += length;
+        }
+        return types;
+    }
+
+    // RFC 6840 section 4.1: NS without SOA marks the parent side of a zone cut, which says
+    // nothing about names at or below the cut except that they have no DS
+    static boolean delegation(BitSet types) {
+        return types.get(TYPE_NS) && !types.get(TYPE_SOA);
+    }
+
+    static byte[] typeBitmap(BitSet types) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int window = 0; window < 256; window++) {
+            BitSet bits = types.get(window * 256, window * 256 + 256);
+            if (bits.isEmpty()) {
+                continue;
+            }
+            int length = (bits.length() + 7) / 8;
+            out.write(window);
+            out.write(length);
+            for (int i = 0; i < length; i++) {
+                int value = 0;
+                for (int bit = 0; bit < 8; bit++) {
+                    if (bits.get(i * 8 + bit)) {
+                        value |= 0x80 >> bit;
+                    }
+                }
+                out.write(value);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // ---------------------------------------------------------------- RRsets
+
+    // Records sharing owner and type, with the RRSIGs that cover them
+    static class RRset {
+        String owner;
+        int type;
+        int rrClass = 1;
+        long ttl = Long.MAX_VALUE;
+        List<mydns.ResourceRecord> records = new ArrayList<>();
+        List<byte[]> rdatas = new ArrayList<>();    // canonical form of each record's RDATA
+        List<RRSIGRecord> signatures = new ArrayList<>();
+        RRSIGRecord verifiedBy;                     // set once verifyAll accepts the set
+
+        RRset(String owner, int type) {
+            this.owner = owner;
+            this.type = type;
+        }
+
+        // rawResponse resolves compression pointers inside the RDATA; null if there are none
+        void add(mydns.ResourceRecord rr, byte[] rawResponse) {
+            records.add(rr);
+            rdatas.add(canonicalRdata(rr.type, rr.rdata, rawResponse));
+        }
+
+        @Override
+        public String toString() {
+            return (owner.isEmpty() ? "." : owner) + "/" + type;
+        }
+    }
+
+    static String key(String owner, int type) {
+        return canonical(owner) + "/" + type;
+    }
+
+    // RFC 4034 section 6.2 with RFC 6840 section 5.1: names embedded in the RDATA of these
+    // types are uncompressed and lower-cased; anything else is hashed as received
+    static byte[] canonicalRdata(int type, byte[] rdata, byte[] rawResponse) {
+        int prefix = 0;     // fixed bytes before the first name
+        int names = 1;
+        switch (type) {
+            // NS, MD, MF, CNAME, MB, MG, MR, PTR, DNAME
+            case TYPE_NS: case 3: case 4: case TYPE_CNAME: case 7: case 8: case 9: case 12: case 39:
+                break;
+            case 6: case 14: case 17: // SOA, MINFO, RP
+                names = 2;
+                break;
+            case 15: case 18: case 21: case 36: // MX, AFSDB, RT, KX
+                prefix = 2;
+                break;
+            case 33: // SRV
+                prefix = 6;
+                break;
+            default:
+                return rdata;
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(rdata.length + 32);
+            out.write(rdata, 0, prefix);
+            int index = prefix;
+            for (int i = 0; i < names; i++) {
+                mydns.NameResult name = mydns.parseNameWithFullResponse(index, rdata, rawResponse);
+                byte[] wire = mydns.encodeName(canonical(name.name));
+                out.write(wire, 0, wire.length);
+                index = name.nextIndex;
+            }
+            out.write(rdata, index, rdata.length - index);
+            return out.toByteArray();
+        } catch (RuntimeException e) {
+            return rdata; // malformed; the signature check will fail on its own
+        }
+    }
+
+    // Group a section into RRsets; RRSIGs attach to the set they cover and OPT is skipped.
+    // rawResponse is the message the section came from, for decompressing RDATA.
+    static Map<String, RRset> group(List<mydns.ResourceRecord> section, byte[] rawResponse) {
+        Map<String, RRset> sets = new LinkedHashMap<>();
+        List<mydns.ResourceRecord> rrsigs = new ArrayList<>();
+        for (mydns.ResourceRecord rr : section) {
+            if (rr.type == TYPE_RRSIG) {
+                rrsigs.add(rr);
+            } else if (rr.type != TYPE_OPT) {
+                RRset set = sets.computeIfAbsent(key(rr.name, rr.type), k -> new RRset(canonical(rr.name), rr.type));
+                set.rrClass = rr.rrClass;
+                set.ttl = Math.min(set.ttl, rr.ttl);
+                set.add(rr, rawResponse);
+            }
+        }
+        for (mydns.ResourceRecord rr : rrsigs) {
+            try {
+                RRSIGRecord sig = RRSIGRecord.parse(rr.rdata);
+                RRset set = sets.get(key(rr.name, sig.typeCovered));
+                if (set != null) {
+                    set.signatures.add(sig);
+                }
+            } catch (RuntimeException e) {
+                // malformed signature; the set simply stays unsigned
+            }
+        }
+        return sets;
+    }
+
+    // RFC 4034 section 3.1.8.1: RRSIG header followed by the canonical RRset
+    static byte[] signedData(RRSIGRecord sig, RRset set) {
+        String owner = set.owner;
+        String[] ownerLabels = labels(owner);
+        if (sig.labels < ownerLabels.length) {
+            // Wildcard expansion: the signature is over the wildcard owner
+            owner = "*." + String.join(".", Arrays.copyOfRange(ownerLabels, ownerLabels.length - sig.labels,
+                                                                ownerLabels.length));
+            if (sig.labels == 0) {
+                owner = "*";
+            }
+        }
+        byte[] ownerWire = mydns.encodeName(owner);
+
+        List<byte[]> rdatas = new ArrayList<>();
+        for (byte[] rdata : set.rdatas) {
+            boolean duplicate = false;
+            for (byte[] existing : rdatas) {
+                duplicate |= Arrays.equals(existing, rdata);
+            }
+            if (!duplicate) {
+                rdatas.add(rdata);
+            }
+        }
+        rdatas.sort(dnssec::compareBytes);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(sig.header, 0, sig.header.length);
+        for (byte[] rdata : rdatas) {
+            ByteBuffer fixed = ByteBuffer.allocate(10).order(ByteOrder.BIG_ENDIAN);
+            fixed.putShort((short) set.type);
+            fixed.putShort((short) set.rrClass);
+            fixed.putInt((int) sig.originalTtl);
+            fixed.putShort((short) rdata.length);
+            out.write(ownerWire, 0, ownerWire.length);
+            out.write(fixed.array(), 0, 10);
+            out.write(rdata, 0, rdata.length);
+        }
+        return out.toByteArray();
+    }
+
+    // ---------------------------------------------------------------- crypto
+
+    static String signatureAlgorithm(int algorithm) {
+        switch (algorithm) {
+            case RSASHA256: return "SHA256withRSA";
+            case RSASHA512: return "SHA512withRSA";
+            case ECDSAP256SHA256: return "SHA256withECDSA";
+            case ECDSAP384SHA384: return "SHA384withECDSA";
+            default: return null;
+        }
+    }
+
+    static String curve(int algorithm) {
+        return algorithm == ECDSAP256SHA256 ? "secp256r1" : "secp384r1";
+    }
+
+    static boolean isEcdsa(int algorithm) {
+        return algorithm == ECDSAP256SHA256 || algorithm == ECDSAP384SHA384;
+    }
+
+    // Decode DNSKEY public key material (RFC 3110 for RSA, RFC 6605 for ECDSA)
+    static PublicKey decodePublicKey(int algorithm, byte[] key) throws GeneralSecurityException {
+        if (isEcdsa(algorithm)) {
+            int half = key.length / 2;
+            ECPoint point = new ECPoint(new BigInteger(1, Arrays.copyOfRange(key, 0, half)),
+                                        new BigInteger(1, Arrays.copyOfRange(key, half, key.length)));
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec(curve(algorithm)));
+            ECParameterSpec spec = parameters.getParameterSpec(ECParameterSpec.class);
+            return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(point, spec));
+        }
+        if (algorithm == RSASHA256 || algorithm == RSASHA512) {
+            int exponentLength = key[0] & 0xFF;
+            int offset = 1;
+            if (exponentLength == 0) {
+                exponentLength = ((key[1] & 0xFF) << 8) | (key[2] & 0xFF);
+                offset = 3;
+            }
+            BigInteger exponent = new BigInteger(1, Arrays.copyOfRange(key, offset, offset + exponentLength));
+            BigInteger modulus = new BigInteger(1, Arrays.copyOfRange(key, offset + exponentLength, key.length));
+            return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+        }
+        throw new GeneralSecurityException("Unsupported DNSSEC algorithm " + algorithm);
+    }
+
+    static byte[] encodePublicKey(int algorithm, PublicKey publicKey) {
+        if (isEcdsa(algorithm)) {
+            int size = algorithm == ECDSAP256SHA256 ? 32 : 48;
+            ECPoint point = ((ECPublicKey) publicKey).getW();
+            byte[] key = new byte[size * 2];
+            copyUnsigned(point.getAffineX(), key, 0, size);
+            copyUnsigned(point.getAffineY(), key, size, size);
+            return key;
+        }
+        RSAPublicKey rsa = (RSAPublicKey) publicKey;
+        byte[] exponent = unsigned(rsa.getPublicExponent());
+        byte[] modulus = unsigned(rsa.getModulus());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(exponent.length);
+        out.write(exponent, 0, exponent.length);
+        out.write(modulus, 0, modulus.length);
+        return out.toByteArray();
+    }
+
+    static boolean verifySignature(int algorithm, PublicKey key, byte[] data, byte[] signature) {
+        try {
+            Signature verifier = Signature.getInstance(signatureAlgorithm(algorithm));
+            verifier.initVerify(key);
+            verifier.update(data);
+            return verifier.verify(isEcdsa(algorithm) ? rawToDer(signature) : signature);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    static byte[] sign(int algorithm, PrivateKey key, byte[] data) throws GeneralSecurityException {
+        Signature signer = Signature.getInstance(signatureAlgorithm(algorithm));
+        signer.initSign(key);
+        signer.update(data);
+        byte[] signature = signer.sign();
+        return isEcdsa(algorithm) ? derToRaw(signature, algorithm == ECDSAP256SHA256 ? 32 : 48) : signature;
+    }
+
+    // DNSSEC carries ECDSA signatures as r || s; the JCA uses a DER SEQUENCE of two INTEGERs
+    static byte[] rawToDer(byte[] raw) {
+        int half = raw.length / 2;
+        byte[] r = new BigInteger(1, Arrays.copyOfRange(raw, 0, half)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(raw, half, raw.length)).toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x30);
+        out.write(4 + r.length + s.length);
+        out.write(0x02);
+        out.write(r.length);
+        out.write(r, 0, r.length);
+        out.write(0x02);
+        out.write(s.length);
+        out.write(s, 0, s.length);
+        return out.toByteArray();
+    }
+
+    static byte[] derToRaw(byte[] der, int size) {
+        int index = (der[1] & 0x80) != 0 ? 2 + (der[1] & 0x7F) : 2;
+        byte[] raw = new byte[size * 2];
+        for (int part = 0; part < 2; part++) {
+            int length = der[index + 1] & 0xFF;
+            byte[] value = Arrays.copyOfRange(der, index + 2, index + 2 + length);
+            copyUnsigned(new BigInteger(1, value), raw, part * size, size);
+            index += 2 + length;
+        }
+        return raw;
+    }
+
+    private static byte[] unsigned(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        return bytes[0] == 0 && bytes.length > 1 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes;
+    }
+
+    private static void copyUnsigned(BigInteger value, byte[] target, int offset, int size) {
+        byte[] bytes = unsigned(value);
+        System.arraycopy(bytes, 0, target, offset + size - bytes.length, bytes.length);
+    }
+
+    // ---------------------------------------------------------------- validation
+
+    // Result of validating one response
+    static class Outcome {
+        String security;
+        String reason;
+        List<mydns.ResourceRecord> answers; // the validated answer chain, if there was one
+
+        Outcome(String security, String reason) {
+            this.security = security;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return reason == null ? security : security + " (" + reason + ")";
+        }
+    }
+
+    static class CacheEntry<T> {
+        T value;
+        long expiresAt;
+
+        CacheEntry(T value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean expired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    // One way a signature on an RRset could check out
+    static class Candidate {
+        DNSKEYRecord key;
+        RRSIGRecord sig;
+        byte[] data;
+
+        Candidate(DNSKEYRecord key, RRSIGRecord sig, byte[] data) {
+            this.key = key;
+            this.sig = sig;
+            this.data = data;
+        }
+    }
+
+    static class Validator {
+        final Map<String, List<DSRecord>> anchors;
+        final Map<String, CacheEntry<List<DNSKEYRecord>>> keyCache = new ConcurrentHashMap<>();
+        final Map<String, CacheEntry<List<DSRecord>>> dsCache = new ConcurrentHashMap<>();
+        final Map<ByteBuffer, Boolean> verified = new ConcurrentHashMap<>();
+        final AtomicLong verifications = new AtomicLong();
+        final AtomicLong memoHits = new AtomicLong();
+        private final AtomicInteger queryIds = new AtomicInteger(0x4000);
+        // Zones whose keys this thread is currently establishing; a repeat means a trust loop
+        private final ThreadLocal<Set<String>> pending = ThreadLocal.withInitial(HashSet::new);
+
+        Validator(Map<String, List<DSRecord>> anchors) {
+            this.anchors = anchors;
+        }
+
+        // Read DS trust anchors in presentation format, e.g. ". IN DS 20326 8 2 E06D44B8..."
+        static Validator load(String path) throws IOException {
+            Map<String, List<DSRecord>> anchors = new LinkedHashMap<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields[0].isEmpty() || fields[0].startsWith(";") || fields[0].startsWith("#")) {
+                        continue;
+                    }
+                    int ds = Arrays.asList(fields).indexOf("DS");
+                    if (ds < 1 || fields.length < ds + 5) {
+                        throw new IllegalArgumentException("Not a DS record: " + line.trim());
+                    }
+                    StringBuilder hex = new StringBuilder();
+                    for (int i = ds + 4; i < fields.length; i++) {
+                        hex.append(fields[i]);
+                    }
+                    DSRecord record = new DSRecord();
+                    record.keyTag = Integer.parseInt(fields[ds + 1]);
+                    record.algorithm = Integer.parseInt(fields[ds + 2]);
+                    record.digestType = Integer.parseInt(fields[ds + 3]);
+                    record.digest = new byte[hex.length() / 2];
+                    for (int i = 0; i < record.digest.length; i++) {
+                        record.digest[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+                    }
+                    anchors.computeIfAbsent(canonical(fields[0]), k -> new ArrayList<>()).add(record);
+                }
+            }
+            if (anchors.isEmpty()) {
+                throw new IllegalArgumentException("No trust anchors in " + path);
+            }
+            return new Validator(anchors);
+        }
+
+        // Validate one response from serverIP, which the resolver was referred to for zone;
+        // a signed referral also caches the child's DS set
+        Outcome validate(String qname, int qtype, String zone, String serverIP, mydns.DNSResponse response) {
+            String name = canonical(qname);
+            Map<String, RRset> answers = group(response.answers, response.rawResponse);
+            Map<String, RRset> authority = group(response.authorities, response.rawResponse);
+
+            List<RRset> proof = new ArrayList<>();
+            String child = null;
+            for (RRset set : authority.values()) {
+                if (set.type == TYPE_NSEC || set.type == TYPE_NSEC3) {
+                    proof.add(set);
+                } else if (set.type == TYPE_NS) {
+                    child = set.owner;
+                }
+            }
+
+            if (!answers.isEmpty()) {
+                return validateAnswer(name, qtype, answers, proof, serverIP);
+            }
+
+            if (child != null && (response.flags & 0x0F) == 0) {
+                // The cut must lead from this zone towards the name, or its DS proof says nothing
+                if (!mydns.inZone(name, child) || child.equals(zone) || !mydns.inZone(child, zone)) {
+                    return new Outcome(BOGUS, "referral to " + (child.isEmpty() ? "." : child)
+                                              + " does not lead to " + name);
+                }
+                RRset ds = authority.get(key(child, TYPE_DS));
+                if (ds != null) {
+                    String problem = verifyAll(Arrays.asList(ds), serverIP);
+                    if (problem == null && !signedAbove(child, zone, Arrays.asList(ds))) {
+                        problem = "DS for " + child + " not signed by its parent";
+                    }
+                    if (problem != null) {
+                        return new Outcome(BOGUS, problem);
+                    }
+                    dsCache.put(child, new CacheEntry<>(parseDS(ds), expiry(ds)));
+                    return new Outcome(SECURE, null);
+                }
+                String problem = proof.isEmpty() ? "referral to " + child + " has neither DS nor denial"
+                                                 : verifyAll(proof, serverIP);
+                if (problem == null && !signedAbove(child, zone, proof)) {
+                    problem = "denial of DS for " + child + " not signed by its parent";
+                }
+                if (problem != null) {
+                    return new Outcome(BOGUS, problem);
+                }
+                if (provesNoDS(child, proof)) {
+                    return new Outcome(INSECURE, "no DS for " + (child.isEmpty() ? "." : child));
+                }
+                return new Outcome(BOGUS, "absence of DS for " + child + " not proven");
+            }
+
+            // Negative answer
+            if (proof.isEmpty()) {
+                return new Outcome(BOGUS, "unsigned negative response for " + name);
+            }
+            String problem = verifyAll(proof, serverIP);
+            if (problem != null) {
+                return new Outcome(BOGUS, problem);
+            }
+            String signer = signerOf(proof);
+            if (signer == null || !mydns.inZone(signer, zone) || !mydns.inZone(name, signer)) {
+                return new Outcome(BOGUS, "denial for " + name + " not signed by the answering zone");
+            }
+            boolean nameError = (response.flags & 0x0F) == 3;
+            boolean proven = nameError ? provesNameError(name, proof) : provesNoData(name, qtype, proof);
+            if (!proven) {
+                return new Outcome(BOGUS, (nameError ? "NXDOMAIN" : "NODATA") + " for " + name + " not proven");
+            }
+            return new Outcome(SECURE, nameError ? "name does not exist" : "no data");
+        }
+
+        // Every set was signed by a zone at or below zone and strictly above child
+        private static boolean signedAbove(String child, String zone, List<RRset> sets) {
+            for (RRset set : sets) {
+                String signer = set.verifiedBy.signer;
+                if (signer.equals(child) || !mydns.inZone(child, signer) || !mydns.inZone(signer, zone)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // The one zone that signed every set, or null if they were signed by different zones
+        private static String signerOf(List<RRset> sets) {
+            String signer = null;
+            for (RRset set : sets) {
+                if (signer != null && !signer.equals(set.verifiedBy.signer)) {
+                    return null;
+                }
+                signer = set.verifiedBy.signer;
+            }
+            return signer;
+        }
+
+        // Follow the CNAME chain from qname to the requested type and verify only those sets;
+        // an owner expanded from a wildcard also needs proof that no closer match exists
+        private Outcome validateAnswer(String name, int qtype, Map<String, RRset> answers, List<RRset> proof,
+                                       String serverIP) {
+            List<RRset> chain = new ArrayList<>();
+            String current = name;
+            while (true) {
+                RRset set = answers.get(key(current, qtype));
+                if (set != null) {
+                    chain.add(set);
+                    break;
+                }
+                RRset alias = answers.get(key(current, TYPE_CNAME));
+                if (alias == null) {
+                    break;
+                }
+                if (chain.size() == MAX_CNAME_CHAIN) {
+                    return new Outcome(BOGUS, "CNAME chain from " + name + " is too long");
+                }
+                chain.add(alias);
+                current = canonical(mydns.parseName(0, alias.rdatas.get(0)).name);
+            }
+            if (chain.isEmpty()) {
+                return new Outcome(BOGUS, "answer does not match " + (name.isEmpty() ? "." : name));
+            }
+
+            String problem = verifyAll(chain, serverIP);
+            if (problem != null) {
+                return new Outcome(BOGUS, problem);
+            }
+            boolean proofChecked = false;
+            for (RRset set : chain) {
+                int signedLabels = set.verifiedBy.labels;
+                if (signedLabels >= labels(set.owner).length) {
+                    continue;
+                }
+                if (!proofChecked) {
+                    problem = proof.isEmpty() ? "no denial for wildcard answer " + set : verifyAll(proof, serverIP);
+                    if (problem != null) {
+                        return new Outcome(BOGUS, problem);
+                    }
+                    proofChecked = true;
+                }
+                if (!set.verifiedBy.signer.equals(signerOf(proof))
+                        || !provesWildcardExpansion(set.owner, signedLabels, proof)) {
+                    return new Outcome(BOGUS, "wildcard expansion of " + set + " not proven");
+                }
+            }
+
+            Outcome outcome = new Outcome(SECURE, null);
+            outcome.answers = new ArrayList<>();
+            for (RRset set : chain) {
+                outcome.answers.addAll(set.records);
+            }
+            return outcome;
+        }
+
+        // Verify every set, resolving keys first and then checking signatures in parallel;
+        // returns null on success or a description of the first set that failed
+        String verifyAll(List<RRset> sets, String serverIP) {
+            List<Callable<Candidate>> jobs = new ArrayList<>();
+            for (RRset set : sets) {
+                if (set.signatures.isEmpty()) {
+                    return "no signature on " + set;
+                }
+                List<Candidate> candidates = new ArrayList<>();
+                for (RRSIGRecord sig : set.signatures) {
+                    if (!mydns.inZone(set.owner, sig.signer)) {
+                        continue;
+                    }
+                    // A DS set belongs to the parent side of the cut and cannot vouch for itself
+                    if (set.type == TYPE_DS && sig.signer.equals(set.owner)) {
+                        continue;
+                    }
+                    List<DNSKEYRecord> keys = keysFor(sig.signer, serverIP);
+                    if (keys != null) {
+                        candidates.addAll(candidates(set, sig, keys));
+                    }
+                }
+                if (candidates.isEmpty()) {
+                    return "no usable signature on " + set;
+                }
+                jobs.add(() -> anyVerifies(candidates));
+            }
+
+            try {
+                List<Candidate> accepted = new ArrayList<>();
+                if (jobs.size() == 1) {
+                    accepted.add(jobs.get(0).call());
+                } else {
+                    for (Future<Candidate> result : VERIFY_POOL.invokeAll(jobs)) {
+                        accepted.add(result.get());
+                    }
+                }
+                for (int i = 0; i < accepted.size(); i++) {
+                    if (accepted.get(i) == null) {
+                        return "bad signature on " + sets.get(i);
+                    }
+                    sets.get(i).verifiedBy = accepted.get(i).sig;
+                }
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "interrupted";
+            } catch (Exception e) {
+                return "signature check failed: " + e.getMessage();
+            }
+        }
+
+        private List<Candidate> candidates(RRset set, RRSIGRecord sig, List<DNSKEYRecord> keys) {
+            List<Candidate> candidates = new ArrayList<>();
+            if (!sig.currentlyValid() || signatureAlgorithm(sig.algorithm) == null) {
+                return candidates;
+            }
+            byte[] data = null;
+            for (DNSKEYRecord key : keys) {
+                if (key.keyTag == sig.keyTag && key.algorithm == sig.algorithm && key.isZoneKey()) {
+                    if (data == null) {
+                        data = signedData(sig, set);
+                    }
+                    candidates.add(new Candidate(key, sig, data));
+                }
+            }
+            return candidates;
+        }
+
+        // The first candidate whose signature verifies, or null
+        private Candidate anyVerifies(List<Candidate> candidates) {
+            for (Candidate candidate : candidates) {
+                if (check(candidate)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        // Memoized signature verification keyed by a digest of key, signed data and signature
+        boolean check(Candidate candidate) {
+            ByteBuffer memoKey;
+            try {
+                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                sha256.update(candidate.key.rdata);
+                sha256.update(candidate.data);
+                sha256.update(candidate.sig.signature);
+                memoKey = ByteBuffer.wrap(sha256.digest());
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+
+            Boolean known = verified.get(memoKey);
+            if (known != null) {
+                memoHits.incrementAndGet();
+                return known;
+            }
+
+            boolean ok;
+            try {
+                ok = verifySignature(candidate.sig.algorithm, candidate.key.publicKey(), candidate.data,
+                                     candidate.sig.signature);
+            } catch (GeneralSecurityException e) {
+                ok = false;
+            }
+            verifications.incrementAndGet();
+            if (verified.size() >= MAX_MEMO_ENTRIES) {
+                verified.clear();
+            }
+            verified.put(memoKey, ok);
+            return ok;
+        }
+
+        // Validated DNSKEY set for a zone, fetched from serverIP on a cache miss; null if it
+        // cannot be chained to a trust anchor
+        List<DNSKEYRecord> keysFor(String zone, String serverIP) {
+            CacheEntry<List<DNSKEYRecord>> cached = keyCache.get(zone);
+            if (cached != null && !cached.expired()) {
+                return cached.value;
+            }
+
+            Set<String> inProgress = pending.get();
+            if (!inProgress.add(zone)) {
+                return null;
+            }
+            try {
+                return fetchKeys(zone, serverIP);
+            } finally {
+                inProgress.remove(zone);
+            }
+        }
+
+        // Cache miss: the parent's DS set, then the zone's DNSKEY set signed by a key it names
+        private List<DNSKEYRecord> fetchKeys(String zone, String serverIP) {
+            List<DSRecord> trusted = trustedDS(zone, serverIP);
+            if (trusted == null) {
+                return null;
+            }
+
+            mydns.DNSResponse response = query(zone, TYPE_DNSKEY, serverIP);
+            RRset keySet = response == null ? null : group(response.answers, response.rawResponse).get(key(zone, TYPE_DNSKEY));
+            if (keySet == null) {
+                return null;
+            }
+
+            List<DNSKEYRecord> keys = new ArrayList<>();
+            List<DNSKEYRecord> entryPoints = new ArrayList<>();
+            for (mydns.ResourceRecord rr : keySet.records) {
+                DNSKEYRecord dnskey = DNSKEYRecord.parse(rr.rdata);
+                keys.add(dnskey);
+                for (DSRecord ds : trusted) {
+                    if (ds.matches(zone, dnskey)) {
+                        entryPoints.add(dnskey);
+                        break;
+                    }
+                }
+            }
+
+            // The DNSKEY set must be signed by a key the parent vouched for
+            List<Candidate> candidates = new ArrayList<>();
+            for (RRSIGRecord sig : keySet.signatures) {
+                if (sig.signer.equals(zone)) {
+                    candidates.addAll(candidates(keySet, sig, entryPoints));
+                }
+            }
+            if (candidates.isEmpty() || anyVerifies(candidates) == null) {
+                return null;
+            }
+
+            keyCache.put(zone, new CacheEntry<>(keys, expiry(keySet)));
+            return keys;
+        }
+
+        // Trust anchor, cached DS set, or a DS set fetched and validated against the parent
+        private List<DSRecord> trustedDS(String zone, String serverIP) {
+            List<DSRecord> anchor = anchors.get(zone);
+            if (anchor != null) {
+                return anchor;
+            }
+            CacheEntry<List<DSRecord>> cached = dsCache.get(zone);
+            if (cached != null && !cached.expired()) {
+                return cached.value;
+            }
+            if (zone.isEmpty()) {
+                return null;
+            }
+
+            // Signer below the delegation we followed: the same server serves the parent too
+            mydns.DNSResponse response = query(zone, TYPE_DS, serverIP);
+            RRset ds = response == null ? null : group(response.answers, response.rawResponse).get(key(zone, TYPE_DS));
+            if (ds == null || verifyAll(Arrays.asList(ds), serverIP) != null) {
+                return null;
+            }
+            List<DSRecord> records = parseDS(ds);
+            dsCache.put(zone, new CacheEntry<>(records, expiry(ds)));
+            return records;
+        }
+
+        private mydns.DNSResponse query(String name, int type, String serverIP) {
+            try {
+                return mydns.sendQuery(name, type, serverIP, queryIds.getAndIncrement() & 0xFFFF);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        // NSEC: the delegation's own record shows NS but no DS or SOA.
+        // NSEC3: a matching record shows the same, or an opt-out span covers the next closer name.
+        boolean provesNoDS(String child, List<RRset> proof) {
+            for (RRset set : proof) {
+                for (mydns.ResourceRecord rr : set.records) {
+                    BitSet types = null;
+                    if (set.type == TYPE_NSEC && set.owner.equals(child)) {
+                        types = NSECRecord.parse(rr.name, rr.rdata).types;
+                    } else if (set.type == TYPE_NSEC3) {
+                        NSEC3Record nsec3 = NSEC3Record.parse(rr.name, rr.rdata);
+                        if (nsec3.usable() && nsec3.matches(child)) {
+                            types = nsec3.types;
+                        }
+                    }
+                    if (types != null) {
+                        return types.get(TYPE_NS) && !types.get(TYPE_DS) && !types.get(TYPE_SOA);
+                    }
+                }
+            }
+            String[] encloser = closestEncloser(child, nsec3s(proof));
+            return encloser != null && coveringNSEC3(encloser[1], nsec3s(proof), true) != null;
+        }
+
+        // The name is covered, and so is the wildcard at its closest encloser
+        boolean provesNameError(String name, List<RRset> proof) {
+            List<NSECRecord> nsecs = new ArrayList<>();
+            for (RRset set : proof) {
+                if (set.type == TYPE_NSEC) {
+                    for (mydns.ResourceRecord rr : set.records) {
+                        nsecs.add(NSECRecord.parse(rr.name, rr.rdata));
+                    }
+                }
+            }
+            if (!nsecs.isEmpty()) {
+                for (NSECRecord nsec : nsecs) {
+                    if (nsec.covers(name) && speaksFor(nsec, name)) {
+                        String encloser = commonAncestor(name, nsec.owner);
+                        String other = commonAncestor(name, nsec.next);
+                        if (other.length() > encloser.length()) {
+                            encloser = other;
+                        }
+                        String wildcard = encloser.isEmpty() ? "*" : "*." + encloser;
+                        for (NSECRecord w : nsecs) {
+                            if (w.covers(wildcard) && speaksFor(w, wildcard)) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+                return false;
+            }
+
+            List<NSEC3Record> nsec3s = nsec3s(proof);
+            String[] encloser = closestEncloser(name, nsec3s);
+            if (encloser == null || coveringNSEC3(encloser[1], nsec3s, false) == null) {
+                return false;
+            }
+            String wildcard = encloser[0].isEmpty() ? "*" : "*." + encloser[0];
+            return coveringNSEC3(wildcard, nsec3s, false) != null;
+        }
+
+        // RFC 4035 section 5.3.4 and RFC 5155 section 8.8: the owner itself does not exist, so
+        // an NSEC covers it, or an NSEC3 covers the next closer name below the wildcard's parent
+        boolean provesWildcardExpansion(String owner, int signedLabels, List<RRset> proof) {
+            for (RRset set : proof) {
+                if (set.type == TYPE_NSEC) {
+                    for (mydns.ResourceRecord rr : set.records) {
+                        NSECRecord nsec = NSECRecord.parse(rr.name, rr.rdata);
+                        if (nsec.covers(owner) && speaksFor(nsec, owner)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            String[] ownerLabels = labels(owner);
+            String nextCloser = String.join(".", Arrays.copyOfRange(ownerLabels, ownerLabels.length - signedLabels - 1,
+                                                                      ownerLabels.length));
+            return coveringNSEC3(nextCloser, nsec3s(proof), false) != null;
+        }
+
+        // A delegation NSEC proves nothing about names at or below its own owner
+        private static boolean speaksFor(NSECRecord nsec, String name) {
+            return !delegation(nsec.types) || !mydns.inZone(name, nsec.owner);
+        }
+
+        // The name's own NSEC or NSEC3 lists neither the type nor a CNAME
+        boolean provesNoData(String name, int qtype, List<RRset> proof) {
+            for (RRset set : proof) {
+                for (mydns.ResourceRecord rr : set.records) {
+                    BitSet types = null;
+                    if (set.type == TYPE_NSEC && set.owner.equals(name)) {
+                        types = NSECRecord.parse(rr.name, rr.rdata).types;
+                    } else if (set.type == TYPE_NSEC3) {
+                        NSEC3Record nsec3 = NSEC3Record.parse(rr.name, rr.rdata);
+                        if (nsec3.usable() && nsec3.matches(name)) {
+                            types = nsec3.types;
+                        }
+                    }
+                    if (types != null && (qtype == TYPE_DS || !delegation(types))) {
+                        return !types.get(qtype) && !types.get(TYPE_CNAME);
+                    }
+                }
+            }
+            return false;
+        }
+
+        private List<NSEC3Record> nsec3s(List<RRset> proof) {
+            List<NSEC3Record> nsec3s = new ArrayList<>();
+            for (RRset set : proof) {
+                if (set.type == TYPE_NSEC3) {
+                    for (mydns.ResourceRecord rr : set.records) {
+                        NSEC3Record nsec3 = NSEC3Record.parse(rr.name, rr.rdata);
+                        if (nsec3.usable()) {
+                            nsec3s.add(nsec3);
+                        }
+                    }
+                }
+            }
+            return nsec3s;
+        }
+
+        // RFC 5155 section 8.3: {closest encloser, next closer name}, or null; the parent side
+        // of a cut cannot be the closest encloser of a name below it
+        private String[] closestEncloser(String name, List<NSEC3Record> nsec3s) {
+            String nextCloser = null;
+            for (String candidate = name; ; candidate = parent(candidate)) {
+                for (NSEC3Record nsec3 : nsec3s) {
+                    if (nsec3.matches(candidate) && !delegation(nsec3.types)) {
+                        return nextCloser == null ? null : new String[] {candidate, nextCloser};
+                    }
+                }
+                nextCloser = candidate;
+                if (candidate.isEmpty()) {
+                    return null;
+                }
+            }
+        }
+
+        private NSEC3Record coveringNSEC3(String name, List<NSEC3Record> nsec3s, boolean requireOptOut) {
+            for (NSEC3Record nsec3 : nsec3s) {
+                if (nsec3.covers(name) && (!requireOptOut || nsec3.optOut())) {
+                    return nsec3;
+                }
+            }
+            return null;
+        }
+    }
+
+    static String commonAncestor(String a, String b) {
+        String[] la = labels(a);
+        String[] lb = labels(b);
+        int shared = 0;
+        while (shared < la.length && shared < lb.length
+                && la[la.length - 1 - shared].equals(lb[lb.length - 1 - shared])) {
+            shared++;
+        }
+        return String.join(".", Arrays.copyOfRange(la, la.length - shared, la.length));
+    }
+
+    static List<DSRecord> parseDS(RRset set) {
+        List<DSRecord> records = new ArrayList<>();
+        for (mydns.ResourceRecord rr : set.records) {
+            records.add(DSRecord.parse(rr.rdata));
+        }
+        return records;
+    }
+
+    // Cache until the TTL runs out or the first covering signature expires
+    static long expiry(RRset set) {
+        long seconds = set.ttl;
+        long now = System.currentTimeMillis() / 1000;
+        for (RRSIGRecord sig : set.signatures) {
+            seconds = Math.min(seconds, Math.min(sig.originalTtl, sig.expiration - now));
+        }
+        return System.currentTimeMillis() + Math.max(0, seconds) * 1000;
+    }
+
+    // ---------------------------------------------------------------- signing
+
+    // Single combined signing key for a zone, used by the simulated hierarchy
+    static class ZoneKey {
+        String zone;
+        int algorithm;
+        PrivateKey privateKey;
+        byte[] dnskey; // DNSKEY RDATA
+        int keyTag;
+
+        static ZoneKey generate(String zone, int algorithm, SecureRandom random) throws GeneralSecurityException {
+            KeyPairGenerator generator;
+            if (isEcdsa(algorithm)) {
+                generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec(curve(algorithm)), random);
+            } else {
+                generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4), random);
+            }
+            KeyPair pair = generator.generateKeyPair();
+
+            ZoneKey key = new ZoneKey();
+            key.zone = zone;
+            key.algorithm = algorithm;
+            key.privateKey = pair.getPrivate();
+            byte[] material = encodePublicKey(algorithm, pair.getPublic());
+            key.dnskey = new byte[4 + material.length];
+            key.dnskey[0] = 0x01; // zone key
+            key.dnskey[1] = 0x01; // secure entry point
+            key.dnskey[2] = 3;    // protocol
+            key.dnskey[3] = (byte) algorithm;
+            System.arraycopy(material, 0, key.dnskey, 4, material.length);
+            key.keyTag = keyTag(key.dnskey);
+            return key;
+        }
+
+        // SHA-256 DS RDATA for the parent zone
+        byte[] ds() {
+            byte[] digest = dsDigest(zone, dnskey, 2);
+            byte[] rdata = new byte[4 + digest.length];
+            rdata[0] = (byte) (keyTag >> 8);
+            rdata[1] = (byte) keyTag;
+            rdata[2] = (byte) algorithm;
+            rdata[3] = 2;
+            System.arraycopy(digest, 0, rdata, 4, digest.length);
+            return rdata;
+        }
+
+        // Presentation form of the DS, suitable for a trust anchor file
+        String dsText() {
+            StringBuilder hex = new StringBuilder();
+            byte[] ds = ds();
+            for (int i = 4; i < ds.length; i++) {
+                hex.append(String.format("%02X", ds[i] & 0xFF));
+            }
+            return (zone.isEmpty() ? "." : zone + ".") + " IN DS " + keyTag + " " + algorithm + " 2 " + hex;
+        }
+
+        // RRSIG over an RRset, valid from an hour ago for thirty days
+        mydns.ResourceRecord sign(RRset set) throws GeneralSecurityException {
+            long now = System.currentTimeMillis() / 1000;
+            byte[] signerWire = mydns.encodeName(zone);
+            String[] ownerLabels = labels(set.owner);
+            int labelCount = ownerLabels.length > 0 && ownerLabels[0].equals("*") ? ownerLabels.length - 1
+                                                                                    : ownerLabels.length;
+
+            RRSIGRecord sig = new RRSIGRecord();
+            sig.typeCovered = set.type;
+            sig.algorithm = algorithm;
+            sig.labels = labelCount;
+            sig.originalTtl = set.ttl;
+            sig.expiration = now + 30L * 24 * 3600;
+            sig.inception = now - 3600;
+            sig.keyTag = keyTag;
+            sig.signer = zone;
+            ByteBuffer header = ByteBuffer.allocate(18 + signerWire.length).order(ByteOrder.BIG_ENDIAN);
+            header.putShort((short) sig.typeCovered);
+            header.put((byte) algorithm);
+            header.put((byte) labelCount);
+            header.putInt((int) sig.originalTtl);
+            header.putInt((int) sig.expiration);
+            header.putInt((int) sig.inception);
+            header.putShort((short) keyTag);
+            header.put(signerWire);
+            sig.header = header.array();
+
+            byte[] signature = dnssec.sign(algorithm, privateKey, signedData(sig, set));
+            byte[] rdata = new byte[sig.header.length + signature.length];
+            System.arraycopy(sig.header, 0, rdata, 0, sig.header.length);
+            System.arraycopy(signature, 0, rdata, sig.header.length, signature.length);
+            return new mydns.ResourceRecord(set.owner, TYPE_RRSIG, 1, set.ttl, rdata.length, rdata);
+        }
+    }
+
+    // ---------------------------------------------------------------- self-check
+
+    // Signed NSEC record for owner, as a zone's name server would send it
+    static List<mydns.ResourceRecord> signedNSEC(ZoneKey key, String owner, String next, int... types)
+            throws GeneralSecurityException {
+        BitSet bits = new BitSet();
+        bits.set(TYPE_RRSIG);
+        bits.set(TYPE_NSEC);
+        for (int type : types) {
+            bits.set(type);
+        }
+        byte[] nextWire = mydns.encodeName(next);
+        byte[] bitmap = typeBitmap(bits);
+        byte[] rdata = Arrays.copyOf(nextWire, nextWire.length + bitmap.length);
+        System.arraycopy(bitmap, 0, rdata, nextWire.length, bitmap.length);
+
+        RRset set = new RRset(owner, TYPE_NSEC);
+        set.ttl = 3600;
+        mydns.ResourceRecord rr = new mydns.ResourceRecord(owner, TYPE_NSEC, 1, set.ttl, rdata.length, rdata);
+        set.add(rr, null);
+        return Arrays.asList(rr, key.sign(set));
+    }
+
+    static mydns.DNSResponse negativeResponse(int rcode, List<mydns.ResourceRecord> authority) {
+        mydns.DNSResponse response = new mydns.DNSResponse();
+        response.flags = 0x8400 | rcode;
+        response.authorities.addAll(authority);
+        response.nscount = authority.size();
+        return response;
+    }
+
+    // Referral to child carrying an NSEC that denies its DS, signed by key's zone
+    static List<mydns.ResourceRecord> signedReferral(ZoneKey key, String child) throws GeneralSecurityException {
+        List<mydns.ResourceRecord> records = new ArrayList<>();
+        records.add(new mydns.ResourceRecord(child, TYPE_NS, 1, 3600, 0, mydns.encodeName("ns." + child)));
+        records.addAll(signedNSEC(key, child, "f.com", TYPE_NS));
+        return records;
+    }
+
+    static int failed;
+
+    static void expect(String what, Object actual, Object expected) {
+        boolean ok = expected.equals(actual);
+        System.out.println((ok ? "ok      " : "FAILED  ") + what + (ok ? "" : ": got " + actual));
+        if (!ok) {
+            failed++;
+        }
+    }
+
+    // Offline checks that denial proofs are only accepted from the zone they speak for:
+    // a replayed parent-side delegation NSEC or a referral off the query's path is bogus
+    public static void main(String[] args) throws Exception {
+        SecureRandom random = new SecureRandom();
+        ZoneKey root = ZoneKey.generate("", ECDSAP256SHA256, random);
+        ZoneKey com = ZoneKey.generate("com", ECDSAP256SHA256, random);
+        Validator validator = new Validator(new LinkedHashMap<>());
+        for (ZoneKey key : Arrays.asList(root, com)) {
+            validator.keyCache.put(key.zone, new CacheEntry<>(Arrays.asList(DNSKEYRecord.parse(key.dnskey)),
+                                                              Long.MAX_VALUE));
+        }
+
+        // The root's NSEC at the com delegation, as any client can fetch and replay it
+        List<mydns.ResourceRecord> cut = signedNSEC(root, "com", "edu", TYPE_NS, TYPE_DS);
+        List<RRset> cutProof = new ArrayList<>(group(cut, null).values());
+        validator.verifyAll(cutProof, "127.0.0.1");
+        expect("delegation NSEC does not prove NXDOMAIN below the cut",
+               validator.provesNameError("zzz.example.com", cutProof), false);
+        expect("delegation NSEC does not prove NODATA at the cut",
+               validator.provesNoData("com", TYPE_A, cutProof), false);
+        List<RRset> unsignedCut = new ArrayList<>(group(signedNSEC(root, "net", "org", TYPE_NS), null).values());
+        validator.verifyAll(unsignedCut, "127.0.0.1");
+        expect("delegation NSEC still proves the cut has no DS", validator.provesNoDS("net", unsignedCut), true);
+        expect("replayed root NSEC in a com response is bogus",
+               validator.validate("zzz.example.com", TYPE_A, "com", "127.0.0.1", negativeResponse(3, cut)).security,
+               BOGUS);
+
+        // Referral to an unsigned delegation that is not on the way to the name
+        List<mydns.ResourceRecord> spoofed = new ArrayList<>();
+        spoofed.add(new mydns.ResourceRecord("evil.com", TYPE_NS, 1, 3600, 0, mydns.encodeName("ns.evil.com")));
+        spoofed.addAll(signedNSEC(com, "evil.com", "example.com", TYPE_NS));
+        expect("referral off the query path is bogus",
+               validator.validate("www.example.com", TYPE_A, "com", "127.0.0.1", negativeResponse(0, spoofed))
+                        .security, BOGUS);
+        expect("referral whose DS denial comes from above the parent is bogus",
+               validator.validate("www.example.com", TYPE_A, "com", "127.0.0.1",
+                                  negativeResponse(0, signedReferral(root, "example.com"))).security, BOGUS);
+
+        // A genuine NXDOMAIN from com: the name and the wildcard are both covered
+        List<mydns.ResourceRecord> denial = new ArrayList<>();
+        denial.addAll(signedNSEC(com, "b.com", "d.com", TYPE_A));
+        denial.addAll(signedNSEC(com, "com", "a.com", TYPE_SOA, TYPE_NS, TYPE_DNSKEY));
+        expect("NXDOMAIN signed by the answering zone is secure",
+               validator.validate("c.com", TYPE_A, "com", "127.0.0.1", negativeResponse(3, denial)).security, SECURE);
+        expect("the same denial for a name outside com is bogus",
+               validator.validate("c.org", TYPE_A, "", "127.0.0.1", negativeResponse(3, denial)).security, BOGUS);
+
+        if (failed > 0) {
+            System.out.println(failed + " check(s) failed");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,807 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Simulated root -> TLD -> authoritative DNS hierarchy served on loopback addresses.
+// Every server listens on its own 127.0.0.x address and the shared port, so glue
+// records carry plain IPv4 addresses exactly like the real hierarchy.
+public class fakedns {
+
+    // One simulated name server and its fault settings
+    static class ServerConfig {
+        String name;
+        String ip;
+        int latencyMs;
+        int jitterMs;
+        double loss;      // probability a UDP query is dropped
+        double truncate;  // probability a UDP reply comes back empty with TC set
+        boolean noGlue;   // referrals from this server omit the additional section
+        List<String> zones = new ArrayList<>();
+
+        ServerConfig(String name, String ip) {
+            this.name = name;
+            this.ip = ip;
+        }
+    }
+
+    // Parsed hierarchy: servers, zone cuts and A records
+    static class Config {
+        long seed = 1;
+        int port = 5353;
+        long ttl = 3600;
+        int dnssecAlgorithm;  // 0 leaves every zone unsigned
+        boolean nsec3;        // deny existence with NSEC3 instead of NSEC
+        Set<String> unsignedZones = new HashSet<>();
+        Map<String, ServerConfig> servers = new LinkedHashMap<>();
+        Map<String, List<String>> zones = new LinkedHashMap<>();   // zone -> NS names
+        Map<String, List<String>> records = new LinkedHashMap<>(); // name -> IPv4 addresses
+        List<String> hostNames = new ArrayList<>();                // names for dnsbench to query
+
+        // IP of the first server for the root zone
+        String rootServerIP() {
+            List<String> rootServers = zones.get("");
+            if (rootServers == null || rootServers.isEmpty()) {
+                throw new IllegalStateException("No servers configured for the root zone");
+            }
+            return servers.get(rootServers.get(0)).ip;
+        }
+    }
+
+    // Read a hierarchy description; see fakedns.conf for the format
+    public static Config loadConfig(String path) throws IOException {
+        Config config = new Config();
+        List<String[]> zoneLines = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    switch (fields[0]) {
+                        case "seed": config.seed = Long.parseLong(fields[1]); break;
+                        case "port": config.port = Integer.parseInt(fields[1]); break;
+                        case "ttl": config.ttl = Long.parseLong(fields[1]); break;
+                        case "dnssec": parseDnssec(fields, config); break;
+                        case "server": parseServer(fields, config); break;
+                        case "zone": zoneLines.add(fields); break;
+                        case "host":
+                            String host = normalize(fields[1]);
+                            for (int i = 2; i < fields.length; i++) {
+                                addRecord(config, host, fields[i]);
+                            }
+                            config.hostNames.add(host);
+                            break;
+                        case "hosts":
+                            generateHosts(config, normalize(fields[1]), Integer.parseInt(fields[2]));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown directive " + fields[0]);
+                    }
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    throw new IllegalArgumentException(path + ":" + lineNumber + ": malformed line: " + line.trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(path + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+
+        // Zones are resolved after all servers are known so the file can be in any order
+        for (String[] fields : zoneLines) {
+            String zone = normalize(fields[1]);
+            List<String> nsNames = new ArrayList<>();
+            for (int i = 2; i < fields.length; i++) {
+                if (fields[i].equals("unsigned")) {
+                    config.unsignedZones.add(zone);
+                    continue;
+                }
+                String nsName = normalize(fields[i]);
+                ServerConfig server = config.servers.get(nsName);
+                if (server == null) {
+                    throw new IllegalArgumentException("Zone " + fields[1] + " uses undeclared server " + fields[i]);
+                }
+                server.zones.add(zone);
+                nsNames.add(nsName);
+            }
+            if (nsNames.isEmpty()) {
+                throw new IllegalArgumentException("Zone " + fields[1] + " has no servers");
+            }
+            config.zones.put(zone, nsNames);
+        }
+        return config;
+    }
+
+    private static void parseDnssec(String[] fields, Config config) {
+        switch (fields[1]) {
+            case "ecdsa": config.dnssecAlgorithm = dnssec.ECDSAP256SHA256; break;
+            case "rsa": config.dnssecAlgorithm = dnssec.RSASHA256; break;
+            case "off": config.dnssecAlgorithm = 0; break;
+            default: throw new IllegalArgumentException("unknown DNSSEC algorithm " + fields[1]);
+        }
+        for (int i = 2; i < fields.length; i++) {
+            switch (fields[i]) {
+                case "nsec": config.nsec3 = false; break;
+                case "nsec3": config.nsec3 = true; break;
+                default: throw new IllegalArgumentException("unknown DNSSEC option " + fields[i]);
+            }
+        }
+    }
+
+    private static void parseServer(String[] fields, Config config) {
+        ServerConfig server = new ServerConfig(normalize(fields[1]), fields[2]);
+        for (int i = 3; i < fields.length; i++) {
+            String option = fields[i];
+            int eq = option.indexOf('=');
+            String key = eq < 0 ? option : option.substring(0, eq);
+            String value = eq < 0 ? "" : option.substring(eq + 1);
+            switch (key) {
+                case "latency": server.latencyMs = Integer.parseInt(value); break;
+                case "jitter": server.jitterMs = Integer.parseInt(value); break;
+                case "loss": server.loss = Double.parseDouble(value); break;
+                case "truncate": server.truncate = Double.parseDouble(value); break;
+                case "noglue": server.noGlue = true; break;
+                default: throw new IllegalArgumentException("unknown server option " + option);
+            }
+        }
+        config.servers.put(server.name, server);
+        // Server names resolve like any other host, which is what glueless referrals rely on
+        addRecord(config, server.name, server.ip);
+    }
+
+    // Generate h0.<zone> .. h<count-1>.<zone> with distinct addresses in 10.0.0.0/8
+    private static void generateHosts(Config config, String zone, int count) {
+        int base = config.hostNames.size();
+        for (int i = 0; i < count; i++) {
+            String host = "h" + i + "." + zone;
+            int n = base + i + 1;
+            addRecord(config, host, "10." + ((n >> 16) & 0xFF) + "." + ((n >> 8) & 0xFF) + "." + (n & 0xFF));
+            config.hostNames.add(host);
+        }
+    }
+
+    private static void addRecord(Config config, String name, String ip) {
+        config.records.computeIfAbsent(name, k -> new ArrayList<>()).add(ip);
+    }
+
+    // Lower-case and strip the trailing dot; the root zone becomes ""
+    static String normalize(String name) {
+        String result = name.toLowerCase();
+        if (result.endsWith(".")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    private final Config config;
+    private final List<DatagramSocket> udpSockets = new ArrayList<>();
+    private final List<ServerSocket> tcpSockets = new ArrayList<>();
+    private final ScheduledExecutorService replyScheduler;
+    private final ExecutorService tcpWorkers = Executors.newCachedThreadPool(daemonThreads("fakedns-tcp"));
+    private volatile boolean running = true;
+    private final Map<String, SignedZone> signedZones = new HashMap<>();
+    private final Map<String, mydns.ResourceRecord> signatures = new ConcurrentHashMap<>(); // RRSIGs made so far
+
+    private fakedns(Config config) {
+        this.config = config;
+        int schedulerThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        this.replyScheduler = Executors.newScheduledThreadPool(schedulerThreads, daemonThreads("fakedns-reply"));
+    }
+
+    // Bind every configured server and start answering queries
+    public static fakedns start(Config config) throws IOException {
+        fakedns dns = new fakedns(config);
+        if (config.dnssecAlgorithm != 0) {
+            try {
+                dns.signZones();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot generate zone keys: " + e.getMessage(), e);
+            }
+        }
+        try {
+            for (ServerConfig server : config.servers.values()) {
+                dns.startServer(server);
+            }
+        } catch (IOException e) {
+            dns.close();
+            throw e;
+        }
+        return dns;
+    }
+
+    private void startServer(ServerConfig server) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(server.ip), config.port);
+
+        DatagramSocket udp = new DatagramSocket(address);
+        udpSockets.add(udp);
+        ServerSocket tcp = new ServerSocket();
+        tcp.setReuseAddress(true);
+        tcp.bind(address);
+        tcpSockets.add(tcp);
+
+        Thread udpThread = new Thread(() -> serveUdp(server, udp), "fakedns-udp-" + server.name);
+        udpThread.setDaemon(true);
+        udpThread.start();
+
+        Thread tcpThread = new Thread(() -> serveTcp(server, tcp), "fakedns-accept-" + server.name);
+        tcpThread.setDaemon(true);
+        tcpThread.start();
+    }
+
+    public void close() {
+        running = false;
+        for (DatagramSocket socket : udpSockets) {
+            socket.close();
+        }
+        for (ServerSocket socket : tcpSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        replyScheduler.shutdownNow();
+        tcpWorkers.shutdownNow();
+    }
+
+    private void serveUdp(ServerConfig server, DatagramSocket socket) {
+        byte[] buffer = new byte[512];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                return; // socket closed
+            }
+
+            byte[] query = new byte[packet.getLength()];
+            System.arraycopy(buffer, 0, query, 0, query.length);
+            SocketAddress client = packet.getSocketAddress();
+
+            byte[] reply = answer(server, query, true);
+            if (reply == null) {
+                continue; // malformed or dropped
+            }
+
+            long delay = latency(server, query);
+            Runnable send = () -> {
+                try {
+                    socket.send(new DatagramPacket(reply, reply.length, client));
+                } catch (IOException e) {
+                    // client gone or socket closed
+                }
+            };
+            if (delay > 0) {
+                replyScheduler.schedule(send, delay, TimeUnit.MILLISECONDS);
+            } else {
+                send.run();
+            }
+        }
+    }
+
+    private void serveTcp(ServerConfig server, ServerSocket serverSocket) {
+        while (running) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                return; // socket closed
+            }
+            tcpWorkers.execute(() -> handleTcp(server, client));
+        }
+    }
+
+    private void handleTcp(ServerConfig server, Socket client) {
+        try (Socket socket = client) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] query = new byte[in.readUnsignedShort()];
+            in.readFully(query);
+
+            byte[] reply = answer(server, query, false);
+            if (reply == null) {
+                return;
+            }
+            Thread.sleep(latency(server, query));
+
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(reply.length);
+            out.write(reply);
+            out.flush();
+        } catch (IOException | InterruptedException e) {
+            // connection dropped or server shutting down
+        }
+    }
+
+    // Build the reply for one query, or null when it is malformed or lost
+    byte[] answer(ServerConfig server, byte[] query, boolean udp) {
+        if (query.length < 12) {
+            return null;
+        }
+
+        int id;
+        int flags;
+        String qname;
+        int qtype;
+        int questionEnd;
+        boolean edns = false;
+        boolean dnssecOk = false;
+        try {
+            id = (int) mydns.parseUnsignedInt(0, 2, query).number;
+            flags = (int) mydns.parseUnsignedInt(2, 2, query).number;
+            mydns.NameResult nameResult = mydns.parseName(12, query);
+            qname = normalize(nameResult.name);
+            qtype = (int) mydns.parseUnsignedInt(nameResult.nextIndex, 2, query).number;
+            questionEnd = nameResult.nextIndex + 4;
+            if (questionEnd > query.length) {
+                return null;
+            }
+            if (mydns.parseUnsignedInt(10, 2, query).number > 0 && questionEnd < query.length) {
+                mydns.ResourceRecord opt = mydns.parseResourceRecord(questionEnd, query);
+                edns = opt.type == dnssec.TYPE_OPT;
+                dnssecOk = edns && (opt.ttl & 0x8000) != 0;
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+
+        if (udp && chance(server, qname, id, 1) < server.loss) {
+            return null;
+        }
+
+        ResponseBuilder reply = new ResponseBuilder(id, flags, query, questionEnd);
+        reply.edns = edns;
+        reply.dnssecOk = dnssecOk;
+        if (udp && chance(server, qname, id, 2) < server.truncate) {
+            reply.flags |= 0x0200; // TC: client should retry over TCP
+            return reply.build();
+        }
+
+        // Deepest zone this server is authoritative for that contains the name;
+        // DS records belong to the parent side of a cut when we serve both
+        String zone = deepestZone(server, qname, qtype == dnssec.TYPE_DS);
+        if (zone == null) {
+            zone = deepestZone(server, qname, false);
+        }
+        if (zone == null) {
+            reply.flags |= 5; // REFUSED
+            return reply.build();
+        }
+        SignedZone signed = dnssecOk ? signedZones.get(zone) : null;
+
+        // Nearest zone cut below our zone on the way to the name means a referral
+        String cut = null;
+        for (String candidate : config.zones.keySet()) {
+            if (candidate.length() > zone.length() && mydns.inZone(candidate, zone) && mydns.inZone(qname, candidate)
+                    && (cut == null || candidate.length() < cut.length())) {
+                cut = candidate;
+            }
+        }
+
+        if (cut != null && qtype == dnssec.TYPE_DS && cut.equals(qname)) {
+            // DS query for a child: answered authoritatively by the parent
+            reply.flags |= 0x0400; // AA
+            if (signedZones.containsKey(cut)) {
+                addRRset(reply.answers, signed, zone, cut, dnssec.TYPE_DS, signedZones.get(cut).key.ds());
+            } else {
+                addRRset(reply.authorities, signed, zone, zone, dnssec.TYPE_SOA, soa(zone));
+                if (signed != null) {
+                    addNoDataProof(reply.authorities, signed, cut);
+                }
+            }
+            return reply.build();
+        }
+
+        if (cut != null) {
+            for (String nsName : config.zones.get(cut)) {
+                reply.authorities.add(record(cut, 2, mydns.encodeName(nsName)));
+                if (!server.noGlue) {
+                    reply.additionals.add(record(nsName, 1, encodeAddress(config.servers.get(nsName).ip)));
+                }
+            }
+            if (signed != null && signedZones.containsKey(cut)) {
+                addRRset(reply.authorities, signed, zone, cut, dnssec.TYPE_DS, signedZones.get(cut).key.ds());
+            } else if (signed != null) {
+                addNoDataProof(reply.authorities, signed, cut); // proves the child is unsigned
+            }
+            return reply.build();
+        }
+
+        reply.flags |= 0x0400; // AA
+        if (qtype == dnssec.TYPE_DNSKEY && qname.equals(zone) && signedZones.containsKey(zone)) {
+            addRRset(reply.answers, signed, zone, qname, dnssec.TYPE_DNSKEY, signedZones.get(zone).key.dnskey);
+            return reply.build();
+        }
+        if (qtype == dnssec.TYPE_SOA && qname.equals(zone)) {
+            addRRset(reply.answers, signed, zone, zone, dnssec.TYPE_SOA, soa(zone));
+            return reply.build();
+        }
+
+        List<String> addresses = config.records.get(qname);
+        if (addresses == null && !qname.equals(zone)) {
+            reply.flags |= 3; // NXDOMAIN
+            addRRset(reply.authorities, signed, zone, zone, dnssec.TYPE_SOA, soa(zone));
+            if (signed != null) {
+                addNameErrorProof(reply.authorities, signed, qname);
+            }
+        } else if (qtype == 1 && addresses != null) {
+            byte[][] rdatas = new byte[addresses.size()][];
+            for (int i = 0; i < rdatas.length; i++) {
+                rdatas[i] = encodeAddress(addresses.get(i));
+            }
+            addRRset(reply.answers, signed, zone, qname, 1, rdatas);
+        } else {
+            addRRset(reply.authorities, signed, zone, zone, dnssec.TYPE_SOA, soa(zone));
+            if (signed != null) {
+                addNoDataProof(reply.authorities, signed, qname);
+            }
+        }
+        return reply.build();
+    }
+
+    // SOA RDATA for a zone apex; negative answers carry it so caches know how long to keep them
+    private byte[] soa(String zone) {
+        byte[] primary = mydns.encodeName(config.zones.get(zone).get(0));
+        byte[] mailbox = mydns.encodeName(zone.isEmpty() ? "hostmaster" : "hostmaster." + zone);
+        ByteBuffer rdata = ByteBuffer.allocate(primary.length + mailbox.length + 20);
+        rdata.put(primary);
+        rdata.put(mailbox);
+        rdata.putInt(1);          // serial
+        rdata.putInt(3600);       // refresh
+        rdata.putInt(600);        // retry
+        rdata.putInt(86400);      // expire
+        rdata.putInt((int) config.ttl); // negative caching TTL
+        return rdata.array();
+    }
+
+    private static String deepestZone(ServerConfig server, String qname, boolean excludeName) {
+        String zone = null;
+        for (String candidate : server.zones) {
+            if (excludeName && candidate.equals(qname) && !candidate.isEmpty()) {
+                continue;
+            }
+            if (mydns.inZone(qname, candidate) && (zone == null || candidate.length() > zone.length())) {
+                zone = candidate;
+            }
+        }
+        return zone;
+    }
+
+    private mydns.ResourceRecord record(String name, int type, byte[] rdata) {
+        return new mydns.ResourceRecord(name, type, 1, config.ttl, rdata.length, rdata);
+    }
+
+    // Add an RRset, plus its RRSIG when the client asked for DNSSEC and the zone is signed
+    private void addRRset(List<mydns.ResourceRecord> section, SignedZone signed, String zone,
+                          String owner, int type, byte[]... rdatas) {
+        dnssec.RRset set = new dnssec.RRset(owner, type);
+        set.ttl = config.ttl;
+        for (byte[] rdata : rdatas) {
+            mydns.ResourceRecord rr = record(owner, type, rdata);
+            set.add(rr, null);
+            section.add(rr);
+        }
+        if (signed != null) {
+            section.add(signatures.computeIfAbsent(zone + "|" + dnssec.key(owner, type), k -> {
+                try {
+                    return signed.key.sign(set);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Cannot sign " + set, e);
+                }
+            }));
+        }
+    }
+
+    // NSEC/NSEC3 for an existing name, showing which types it does not have
+    private void addNoDataProof(List<mydns.ResourceRecord> section, SignedZone signed, String name) {
+        addDenial(section, signed, config.nsec3 ? hashLabel(name) : name);
+    }
+
+    // Covering records for the name and for the wildcard at its closest encloser
+    private void addNameErrorProof(List<mydns.ResourceRecord> section, SignedZone signed, String qname) {
+        String encloser = qname;
+        String nextCloser = qname;
+        while (!signed.types.containsKey(encloser)) {
+            nextCloser = encloser;
+            encloser = dnssec.parent(encloser);
+        }
+        String wildcard = encloser.isEmpty() ? "*" : "*." + encloser;
+
+        Set<String> owners = new LinkedHashSet<>();
+        if (config.nsec3) {
+            owners.add(hashLabel(encloser));
+            owners.add(signed.coveringHash(hashLabel(nextCloser)));
+            owners.add(signed.coveringHash(hashLabel(wildcard)));
+        } else {
+            owners.add(signed.predecessor(qname));
+            owners.add(signed.predecessor(wildcard));
+        }
+        for (String owner : owners) {
+            addDenial(section, signed, owner);
+        }
+    }
+
+    // NSEC record for an owner name, or NSEC3 record for a hash label
+    private void addDenial(List<mydns.ResourceRecord> section, SignedZone signed, String owner) {
+        if (config.nsec3) {
+            String next = signed.hashed.higherKey(owner);
+            if (next == null) {
+                next = signed.hashed.firstKey();
+            }
+            byte[] nextHash = dnssec.base32hexDecode(next);
+            byte[] bitmap = dnssec.typeBitmap(signed.types.get(signed.hashed.get(owner)));
+            ByteBuffer rdata = ByteBuffer.allocate(6 + nextHash.length + bitmap.length);
+            rdata.put((byte) 1);   // SHA-1
+            rdata.put((byte) 0);   // no opt-out
+            rdata.putShort((short) 0); // iterations
+            rdata.put((byte) 0);   // empty salt
+            rdata.put((byte) nextHash.length);
+            rdata.put(nextHash);
+            rdata.put(bitmap);
+            String name = signed.key.zone.isEmpty() ? owner : owner + "." + signed.key.zone;
+            addRRset(section, signed, signed.key.zone, name, dnssec.TYPE_NSEC3, rdata.array());
+        } else {
+            int index = Collections.binarySearch(signed.names, owner, dnssec::compareCanonical);
+            String next = signed.names.get((index + 1) % signed.names.size());
+            byte[] nextWire = mydns.encodeName(next);
+            byte[] bitmap = dnssec.typeBitmap(signed.types.get(owner));
+            byte[] rdata = new byte[nextWire.length + bitmap.length];
+            System.arraycopy(nextWire, 0, rdata, 0, nextWire.length);
+            System.arraycopy(bitmap, 0, rdata, nextWire.length, bitmap.length);
+            addRRset(section, signed, signed.key.zone, owner, dnssec.TYPE_NSEC, rdata);
+        }
+    }
+
+    static String hashLabel(String name) {
+        return dnssec.base32hexEncode(dnssec.nsec3Hash(name, new byte[0], 0));
+    }
+
+    // Signing key and denial-of-existence chain for one signed zone
+    static class SignedZone {
+        dnssec.ZoneKey key;
+        Map<String, BitSet> types = new HashMap<>();      // owner name -> types present
+        List<String> names = new ArrayList<>();           // owners in canonical order, for NSEC
+        TreeMap<String, String> hashed = new TreeMap<>(); // NSEC3 hash label -> owner
+
+        // Closest owner before a name that does not exist
+        String predecessor(String name) {
+            int index = Collections.binarySearch(names, name, dnssec::compareCanonical);
+            int insertion = index >= 0 ? index : -index - 1;
+            return names.get(index >= 0 ? index : (insertion + names.size() - 1) % names.size());
+        }
+
+        // Hash label whose NSEC3 span covers the given hash
+        String coveringHash(String hash) {
+            String previous = hashed.lowerKey(hash);
+            return previous != null ? previous : hashed.lastKey();
+        }
+    }
+
+    // Generate a key per signed zone and the owner names and types for its NSEC/NSEC3 chain
+    private void signZones() throws GeneralSecurityException {
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(config.seed);
+        for (String zone : config.zones.keySet()) {
+            if (!config.unsignedZones.contains(zone)) {
+                SignedZone signed = new SignedZone();
+                signed.key = dnssec.ZoneKey.generate(zone, config.dnssecAlgorithm, random);
+                signedZones.put(zone, signed);
+            }
+        }
+
+        for (Map.Entry<String, SignedZone> entry : signedZones.entrySet()) {
+            String zone = entry.getKey();
+            SignedZone signed = entry.getValue();
+            addTypes(signed, zone, dnssec.TYPE_SOA, dnssec.TYPE_NS, dnssec.TYPE_DNSKEY, dnssec.TYPE_RRSIG);
+            for (String child : config.zones.keySet()) {
+                if (!child.isEmpty() && zone.equals(owningZone(dnssec.parent(child)))) {
+                    addTypes(signed, child, dnssec.TYPE_NS);
+                    if (signedZones.containsKey(child)) {
+                        addTypes(signed, child, dnssec.TYPE_DS, dnssec.TYPE_RRSIG);
+                    }
+                }
+            }
+            for (String name : config.records.keySet()) {
+                if (zone.equals(owningZone(name))) {
+                    addTypes(signed, name, dnssec.TYPE_A, dnssec.TYPE_RRSIG);
+                }
+            }
+
+            for (Map.Entry<String, BitSet> owner : signed.types.entrySet()) {
+                if (config.nsec3) {
+                    signed.hashed.put(hashLabel(owner.getKey()), owner.getKey());
+                } else {
+                    // NSEC records are signed wherever they appear
+                    owner.getValue().set(dnssec.TYPE_NSEC);
+                    owner.getValue().set(dnssec.TYPE_RRSIG);
+                    signed.names.add(owner.getKey());
+                }
+            }
+            signed.names.sort(dnssec::compareCanonical);
+        }
+    }
+
+    private static void addTypes(SignedZone signed, String owner, int... types) {
+        BitSet bits = signed.types.computeIfAbsent(owner, k -> new BitSet());
+        for (int type : types) {
+            bits.set(type);
+        }
+    }
+
+    // Deepest configured zone containing the name
+    private String owningZone(String name) {
+        String zone = null;
+        for (String candidate : config.zones.keySet()) {
+            if (mydns.inZone(name, candidate) && (zone == null || candidate.length() > zone.length())) {
+                zone = candidate;
+            }
+        }
+        return zone;
+    }
+
+    // DS trust anchor for the simulated root, or null when the hierarchy is unsigned
+    public Map<String, List<dnssec.DSRecord>> trustAnchors() {
+        SignedZone root = signedZones.get("");
+        if (root == null) {
+            return null;
+        }
+        Map<String, List<dnssec.DSRecord>> anchors = new HashMap<>();
+        anchors.put("", Collections.singletonList(dnssec.DSRecord.parse(root.key.ds())));
+        return anchors;
+    }
+
+    // Deterministic value in [0, 1) for a given server, query and decision
+    private double chance(ServerConfig server, String qname, int id, int salt) {
+        long h = mix(config.seed);
+        h = mix(h ^ server.ip.hashCode());
+        h = mix(h ^ qname.hashCode());
+        h = mix(h ^ id);
+        h = mix(h ^ salt);
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+    private long latency(ServerConfig server, byte[] query) {
+        if (server.jitterMs == 0) {
+            return server.latencyMs;
+        }
+        int id = ((query[0] & 0xFF) << 8) | (query[1] & 0xFF);
+        return server.latencyMs + (long) (chance(server, "", id, 3) * (server.jitterMs + 1));
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    static byte[] encodeAddress(String ip) {
+        String[] parts = ip.split("\\.");
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            address[i] = (byte) Integer.parseInt(parts[i]);
+        }
+        return address;
+    }
+
+    // Assembles a reply that echoes the question of the query it answers
+    static class ResponseBuilder {
+        int id;
+        int flags;
+        boolean edns;      // query carried OPT, so the reply does too
+        boolean dnssecOk;  // echo the DO bit
+        byte[] question;
+        List<mydns.ResourceRecord> answers = new ArrayList<>();
+        List<mydns.ResourceRecord> authorities = new ArrayList<>();
+        List<mydns.ResourceRecord> additionals = new ArrayList<>();
+
+        ResponseBuilder(int id, int queryFlags, byte[] query, int questionEnd) {
+            this.id = id;
+            this.flags = 0x8000 | (queryFlags & 0x7900); // QR, echo opcode and RD
+            this.question = new byte[questionEnd - 12];
+            System.arraycopy(query, 12, question, 0, question.length);
+        }
+
+        byte[] build() {
+            ByteBuffer buffer = ByteBuffer.allocate(65535);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            buffer.putShort((short) id);
+            buffer.putShort((short) flags);
+            buffer.putShort((short) 1);
+            buffer.putShort((short) answers.size());
+            buffer.putShort((short) authorities.size());
+            buffer.putShort((short) (additionals.size() + (edns ? 1 : 0)));
+            buffer.put(question);
+            putRecords(buffer, answers);
+            putRecords(buffer, authorities);
+            putRecords(buffer, additionals);
+            if (edns) {
+                buffer.put((byte) 0); // root owner
+                buffer.putShort((short) dnssec.TYPE_OPT);
+                buffer.putShort((short) mydns.EDNS_BUFFER_SIZE);
+                buffer.putInt(dnssecOk ? 0x8000 : 0);
+                buffer.putShort((short) 0);
+            }
+
+            byte[] result = new byte[buffer.position()];
+            buffer.flip();
+            buffer.get(result);
+            return result;
+        }
+
+        private static void putRecords(ByteBuffer buffer, List<mydns.ResourceRecord> records) {
+            for (mydns.ResourceRecord rr : records) {
+                buffer.put(mydns.encodeName(rr.name));
+                buffer.putShort((short) rr.type);
+                buffer.putShort((short) rr.rrClass);
+                buffer.putInt((int) rr.ttl);
+                buffer.putShort((short) rr.rdata.length);
+                buffer.put(rr.rdata);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("Usage: fakedns config-file [trust-anchor-output]");
+            System.exit(1);
+        }
+
+        Config config = loadConfig(args[0]);
+        fakedns dns = start(config);
+        if (dns.signedZones.containsKey("")) {
+            String anchor = dns.signedZones.get("").key.dsText();
+            System.out.println("Root trust anchor: " + anchor);
+            if (args.length == 2) {
+                try (FileWriter writer = new FileWriter(args[1])) {
+                    writer.write(anchor + "\n");
+                }
+            }
+        }
+        System.out.println("Serving " + config.servers.size() + " name servers on port " + config.port
+                + ", root at " + config.rootServerIP());
+        System.out.println("Try: java mydns " + (config.hostNames.isEmpty() ? "name" : config.hostNames.get(0))
+                + " " + config.rootServerIP() + " " + config.port);
+        Thread.currentThread().join();
+    }
+}
@@ -1,3 +1,5 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -7,6 +9,15 @@ import java.util.List;
 
 public class mydns {
 
+    // Transport settings, overridable for the simulated hierarchy in fakedns
+    static int dnsPort = 53;
+    static int queryTimeoutMs = 10000;
+    static int queryRetries = 0;
+    static boolean quiet = false; // suppress diagnostics when driven by dnsbench
+    static dnssec.Validator validator = null; // set to validate answers against a trust anchor
+
+    static final int EDNS_BUFFER_SIZE = 4096;
+
     // Resource Record class to store parsed RR data
     static class ResourceRecord {
         String name;
@@ -52,6 +63,11 @@ public class mydns {
 
     // Create DNS query message with proper flags
     public static byte[] createQuery(int id, String domainName) {
+        return createQuery(id, domainName, 1, false);
+    }
+
+    // Query for any type; dnssecOk adds an EDNS0 OPT record with the DO bit set
+    public static byte[] createQuery(int id, String domainName, int qtype, boolean dnssecOk) {
         // Header section
         ByteBuffer query = ByteBuffer.allocate(1024);
         query.order(ByteOrder.BIG_ENDIAN);
@@ -61,22 +77,21 @@ public class mydns {
         query.putShort((short)1); // QDCOUNT
         query.putShort((short)0); // ANCOUNT
         query.putShort((short)0); // NSCOUNT
-        query.putShort((short)0); // ARCOUNT
+        query.putShort((short)(dnssecOk ? 1 : 0)); // ARCOUNT
 
-        // Split domain name into labels
-        String[] labels = domainName.split("\\.");
-        for (String label : labels) {
-            if (label.length() > 63) {
-                throw new IllegalArgumentException("Label too long: " + label);
-            }
-            query.put((byte)label.length()); // length byte
-            query.put(label.getBytes(StandardCharsets.UTF_8)); // label bytes
-        }
-        query.put((byte)0); // zero length byte as end of qname
+        query.put(encodeName(domainName)); // QNAME
 
-        query.putShort((short)1); // QTYPE (A record)
+        query.putShort((short)qtype); // QTYPE
         query.putShort((short)1); // QCLASS (IN)
 
+        if (dnssecOk) {
+            query.put((byte)0); // OPT owner is the root
+            query.putShort((short)41); // TYPE OPT
+            query.putShort((short)EDNS_BUFFER_SIZE); // CLASS carries the UDP payload size
+            query.putInt(0x8000); // extended RCODE 0, version 0, DO bit
+            query.putShort((short)0); // no options
+        }
+
         // Create final array with exact size
         int queryLength = query.position();
         byte[] finalQuery = new byte[queryLength];
@@ -86,6 +101,32 @@ public class mydns {
         return finalQuery;
     }
 
+    // Encode a domain name as uncompressed labels; "" is the root
+    public static byte[] encodeName(String domainName) {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        if (!domainName.isEmpty() && !domainName.equals(".")) {
+            for (String label : domainName.split("\\.")) {
+                if (label.length() > 63) {
+                    throw new IllegalArgumentException("Label too long: " + label);
+                }
+                byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+                buffer.put((byte)bytes.length); // length byte
+                buffer.put(bytes); // label bytes
+            }
+        }
+        buffer.put((byte)0); // zero length byte as end of name
+
+        byte[] encoded = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(encoded);
+        return encoded;
+    }
+
+    // True if name is zone itself or lies below it; both lower-case without trailing dot
+    public static boolean inZone(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
     static class NumberResult {
         long number;
         int nextIndex;
@@ -174,8 +215,8 @@ public class mydns {
         return new NameResult(result, end);
     }
 
-    // Private helper to parse names with access to full DNS message
-    private static NameResult parseNameWithFullResponse(int index, byte[] segment, byte[] fullResponse) {
+    // Parse a name inside a record segment, resolving pointers against the full DNS message
+    static NameResult parseNameWithFullResponse(int index, byte[] segment, byte[] fullResponse) {
         // If fullResponse is null, just use the segment directly
         if (fullResponse == null) {
             return parseName(index, segment);
@@ -461,7 +502,7 @@ public class mydns {
         try {
             // Header section (12 bytes minimum)
             if (response.length < 12) {
-                System.out.println("Error: Response too short for DNS header");
+                if (!quiet) System.out.println("Error: Response too short for DNS header");
                 return dnsResponse;
             }
 
@@ -475,9 +516,9 @@ public class mydns {
             
             // Check for error response
             int rcode = dnsResponse.flags & 0x0F;
-            if (rcode == 3) { // NXDOMAIN
+            if (rcode == 3 && !quiet) { // NXDOMAIN
                 System.out.println("DNS Error: Domain does not exist (NXDOMAIN)");
-            } else if (rcode != 0) {
+            } else if (rcode != 0 && !quiet) {
                 System.out.println("DNS Error: Response code " + rcode);
             }
 
@@ -533,7 +574,7 @@ public class mydns {
             }
 
         } catch (Exception e) {
-            System.out.println("Error parsing DNS response: " + e.getMessage());
+            if (!quiet) System.out.println("Error parsing DNS response: " + e.getMessage());
             // Return partial response
         }
 
@@ -609,71 +650,232 @@ public class mydns {
         }
     }
 
-    // Send DNS query with better timeout and error handling
+    // Send DNS query, retrying on timeout and falling back to TCP when the reply is truncated
     public static DNSResponse sendQuery(String domainName, String serverIP, int queryId) throws Exception {
+        return sendQuery(domainName, 1, serverIP, queryId);
+    }
+
+    // Query for any type; asks for DNSSEC records whenever a validator is configured
+    public static DNSResponse sendQuery(String domainName, int qtype, String serverIP, int queryId) throws Exception {
+        InetAddress address = InetAddress.getByName(serverIP);
         DatagramSocket socket = new DatagramSocket();
-        socket.setSoTimeout(10000); // 10 second timeout
-        
+        socket.setSoTimeout(queryTimeoutMs);
+
         try {
-            byte[] query = createQuery(queryId, domainName);
-            DatagramPacket packet = new DatagramPacket(query, query.length, 
-                                                     InetAddress.getByName(serverIP), 53);
-            socket.send(packet);
-            
-            byte[] response = new byte[2048];
+            for (int attempt = 0; ; attempt++) {
+                // Fresh ID per attempt so a late reply to an earlier try is ignored
+                int id = (queryId + attempt * 0x1000) & 0xFFFF;
+                byte[] query = createQuery(id, domainName, qtype, validator != null);
+                DatagramPacket packet = new DatagramPacket(query, query.length, address, dnsPort);
+                socket.send(packet);
+
+                try {
+                    byte[] actualResponse = receiveReply(socket, id);
+                    if ((actualResponse[2] & 0x02) != 0) { // TC bit set
+                        actualResponse = sendTcpQuery(query, address);
+                    }
+                    return parseResponse(actualResponse);
+                } catch (SocketTimeoutException e) {
+                    if (attempt >= queryRetries) {
+                        if (!quiet) System.out.println("Timeout querying DNS server: " + serverIP);
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    // Receive datagrams until one carries the expected query ID
+    private static byte[] receiveReply(DatagramSocket socket, int id) throws Exception {
+        byte[] response = new byte[EDNS_BUFFER_SIZE];
+        while (true) {
             DatagramPacket responsePacket = new DatagramPacket(response, response.length);
             socket.receive(responsePacket);
-            
-            byte[] actualResponse = new byte[responsePacket.getLength()];
-            System.arraycopy(response, 0, actualResponse, 0, responsePacket.getLength());
-            
-            return parseResponse(actualResponse);
-            
-        } catch (SocketTimeoutException e) {
-            System.out.println("Timeout querying DNS server: " + serverIP);
-            throw e;
+
+            int length = responsePacket.getLength();
+            if (length >= 12 && (((response[0] & 0xFF) << 8) | (response[1] & 0xFF)) == id) {
+                byte[] actualResponse = new byte[length];
+                System.arraycopy(response, 0, actualResponse, 0, length);
+                return actualResponse;
+            }
+        }
+    }
+
+    // Repeat a truncated query over TCP using the two-byte length prefix
+    private static byte[] sendTcpQuery(byte[] query, InetAddress address) throws Exception {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, dnsPort), queryTimeoutMs);
+            socket.setSoTimeout(queryTimeoutMs);
+
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(query.length);
+            out.write(query);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] response = new byte[in.readUnsignedShort()];
+            in.readFully(response);
+            return response;
         } finally {
             socket.close();
         }
     }
 
-    // Perform iterative DNS resolution
-    public static void performIterativeResolution(String domainName, String rootServerIP) throws Exception {
-        String currentServerIP = rootServerIP;
-        int queryId = 1;
-        
-        while (true) {            
+    // Outcome of one iterative resolution, for callers that do their own reporting
+    static class ResolutionResult {
+        String domainName;
+        List<ResourceRecord> answers = new ArrayList<>();
+        int hops;          // servers queried, including lookups of glueless NS names
+        long elapsedNanos;
+        String error;      // null when an answer was found
+        String security;   // dnssec.SECURE, INSECURE or BOGUS; null when not validating
+    }
+
+    static final int MAX_HOPS = 32;
+    static final int MAX_GLUE_DEPTH = 4;
+
+    // Resolve a name iteratively from the root, optionally printing every hop
+    public static ResolutionResult resolve(String domainName, String rootServerIP, boolean verbose) {
+        ResolutionResult result = new ResolutionResult();
+        result.domainName = domainName;
+        result.security = validator == null ? null : dnssec.SECURE;
+        long start = System.nanoTime();
+
+        try {
+            resolveFrom(domainName, rootServerIP, rootServerIP, verbose, 0, result);
+        } catch (Exception e) {
+            result.error = "query failed: " + e.getMessage();
+        }
+
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void resolveFrom(String domainName, String serverIP, String rootServerIP,
+                                    boolean verbose, int depth, ResolutionResult result) throws Exception {
+        String currentServerIP = serverIP;
+        String currentZone = ""; // zone the current server was referred to for
+
+        while (true) {
+            if (result.hops >= MAX_HOPS) {
+                result.error = "too many referrals";
+                return;
+            }
+
             // Send query to current server
-            DNSResponse response = sendQuery(domainName, currentServerIP, queryId++);
-            
-            // Display the response
-            displayDNSResponse(currentServerIP, response);
-            
-            // Check if we got an answer
+            result.hops++;
+            DNSResponse response = sendQuery(domainName, currentServerIP, result.hops);
+
+            if (verbose) {
+                displayDNSResponse(currentServerIP, response);
+            }
+
+            // Validate while the chain of trust is unbroken; an insecure delegation ends it
+            int rcode = response.flags & 0x0F;
+            List<ResourceRecord> validatedAnswers = null;
+            if (dnssec.SECURE.equals(result.security) && (rcode == 0 || rcode == 3)) {
+                dnssec.Outcome outcome = validator.validate(domainName, 1, currentZone, currentServerIP, response);
+                if (verbose) {
+                    System.out.println("DNSSEC: " + outcome);
+                }
+                if (dnssec.BOGUS.equals(outcome.security)) {
+                    result.security = dnssec.BOGUS;
+                    result.error = "DNSSEC validation failed: " + outcome.reason;
+                    return;
+                }
+                result.security = outcome.security;
+                validatedAnswers = outcome.answers;
+            }
+
+            // Check if we got an answer; once validated, only the chain for the query name counts
             if (response.ancount > 0) {
-                System.out.println("\nFinal Answer Found!");
-                displayFinalIPs(response.answers);
-                break;
+                result.answers = validatedAnswers != null ? validatedAnswers : response.answers;
+                return;
             }
-            
-            // If no answer, we need to find the next server to query
-            if (response.nscount == 0) {
-                System.out.println("DNS resolution failed - no answer and no next server available");
-                break;
+
+            if (rcode == 3) {
+                result.error = "domain does not exist";
+                return;
             }
-            
+
+            // If no answer, we need to find the next server to query; without NS records
+            // the authority section only holds a SOA or denial proof, so the name has no data
+            boolean referral = false;
+            for (ResourceRecord rr : response.authorities) {
+                referral |= rr.type == 2;
+            }
+            if (!referral) {
+                result.error = response.nscount == 0 ? "no answer and no next server available" : "no data";
+                return;
+            }
+
             // Extract NS servers from authority section
             List<String> nsServers = extractNSServers(response.authorities, response.rawResponse);
-            
+
             // Use the selectNextServer method to pick the best server
             String nextServerIP = selectNextServer(nsServers, response.additionals);
-            
+
+            // Referral without glue: look the name servers up from the root
             if (nextServerIP == null) {
-                System.out.println("DNS resolution failed - could not find IP for any NS server");
-                break;
+                nextServerIP = resolveGlueless(nsServers, rootServerIP, verbose, depth, result);
             }
-            
+
+            if (nextServerIP == null) {
+                result.error = "could not find IP for any NS server";
+                return;
+            }
+
             currentServerIP = nextServerIP;
+            for (ResourceRecord rr : response.authorities) {
+                if (rr.type == 2) {
+                    currentZone = dnssec.canonical(rr.name);
+                }
+            }
+        }
+    }
+
+    // Resolve the address of the first NS name that resolves, charging its hops to the caller
+    private static String resolveGlueless(List<String> nsServers, String rootServerIP, boolean verbose,
+                                          int depth, ResolutionResult result) throws Exception {
+        if (depth >= MAX_GLUE_DEPTH) {
+            return null;
+        }
+
+        for (String server : nsServers) {
+            if (verbose) {
+                System.out.println("No glue for " + server + ", resolving it from the root");
+            }
+
+            ResolutionResult nsResult = new ResolutionResult();
+            nsResult.hops = result.hops;
+            nsResult.security = result.security == null ? null : dnssec.SECURE;
+            resolveFrom(server, rootServerIP, rootServerIP, verbose, depth + 1, nsResult);
+            result.hops = nsResult.hops;
+
+            for (ResourceRecord rr : nsResult.answers) {
+                if (rr.type == 1) { // A record
+                    return parseIPAddress(rr.rdata);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Perform iterative DNS resolution
+    public static void performIterativeResolution(String domainName, String rootServerIP) throws Exception {
+        ResolutionResult result = resolve(domainName, rootServerIP, true);
+
+        if (result.error == null) {
+            System.out.println("\nFinal Answer Found!");
+            displayFinalIPs(result.answers);
+            if (result.security != null) {
+                System.out.println("DNSSEC status: " + result.security);
+            }
+        } else {
+            System.out.println("DNS resolution failed - " + result.error);
         }
     }
 
@@ -690,13 +892,19 @@ public class mydns {
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
-            System.out.println("Usage: mydns domain-name root-dns-ip");
+        if (args.length < 2 || args.length > 4) {
+            System.out.println("Usage: mydns domain-name root-dns-ip [port [trust-anchor-file]]");
             System.exit(1);
         }
 
         String domainName = args[0];
         String rootDnsIp = args[1];
+        if (args.length >= 3) {
+            dnsPort = Integer.parseInt(args[2]);
+        }
+        if (args.length == 4) {
+            validator = dnssec.Validator.load(args[3]);
+        }
         performIterativeResolution(domainName, rootDnsIp);
     }
 }
\ No newline at end of file
@@ -0,0 +1,345 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Streams resolution results to an output stream from one dedicated thread.
+// Resolver threads only enqueue; formatting and I/O happen on the writer thread,
+// which drains the bounded queue in batches into a large buffer. A full queue
+// blocks producers, so a slow disk applies backpressure instead of using memory.
+//
+// Formats:
+//   jsonl  one JSON object per line
+//   csv    header line, then one row per name; addresses separated by ';'
+//   bin    "DNSR" and a version byte, then per record:
+//          u8 name length, name bytes (UTF-8), u8 status, u8 hops,
+//          u32 latency in microseconds, u32 TTL, u8 address count,
+//          4 bytes per IPv4 address, and if status has ERROR set,
+//          u16 error length and error bytes (UTF-8)
+public class resultwriter implements AutoCloseable {
+
+    static final String JSONL = "jsonl";
+    static final String CSV = "csv";
+    static final String BINARY = "bin";
+
+    static final int BUFFER_SIZE = 1 << 20;
+    static final int BATCH_SIZE = 1024;
+    static final byte[] BINARY_MAGIC = {'D', 'N', 'S', 'R', 1};
+
+    // Binary status byte: bit 0 is the error flag, bits 1-2 the DNSSEC result
+    static final int STATUS_ERROR = 0x01;
+    static final String[] SECURITY = {null, dnssec.SECURE, dnssec.INSECURE, dnssec.BOGUS};
+
+    // Marks the end of the stream on the queue
+    private static final mydns.ResolutionResult END = new mydns.ResolutionResult();
+
+    private final String format;
+    private final BlockingQueue<mydns.ResolutionResult> queue;
+    private final DataOutputStream out;
+    private final Thread thread;
+    private final StringBuilder line = new StringBuilder(256);
+    private volatile IOException failure;
+
+    public resultwriter(OutputStream output, String format, int capacity) throws IOException {
+        if (!format.equals(JSONL) && !format.equals(CSV) && !format.equals(BINARY)) {
+            throw new IllegalArgumentException("Unknown output format: " + format);
+        }
+        this.format = format;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.out = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+
+        if (format.equals(CSV)) {
+            out.write("name,type,addresses,ttl,hops,latency_ms,dnssec,error\n".getBytes(StandardCharsets.UTF_8));
+        } else if (format.equals(BINARY)) {
+            out.write(BINARY_MAGIC);
+        }
+
+        thread = new Thread(this::drain, "resultwriter");
+        thread.start();
+    }
+
+    // Queue one result, waiting while the queue is full
+    public void write(mydns.ResolutionResult result) throws IOException, InterruptedException {
+        if (failure != null) {
+            // A fresh exception, since close() rethrows failure itself
+            throw new IOException("Result writer failed", failure);
+        }
+        queue.put(result);
+    }
+
+    // Flush everything queued so far and close the output
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing results");
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void drain() {
+        List<mydns.ResolutionResult> batch = new ArrayList<>(BATCH_SIZE);
+        boolean ended = false;
+        try {
+            while (!ended) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (mydns.ResolutionResult result : batch) {
+                    if (result == END) {
+                        ended = true;
+                        break;
+                    }
+                    if (failure == null) {
+                        format(result);
+                    }
+                }
+                batch.clear();
+            }
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            fail(e, ended || batch.contains(END));
+        } catch (RuntimeException e) {
+            fail(new IOException("Cannot format result: " + e, e), ended || batch.contains(END));
+        }
+    }
+
+    // Record the failure and, unless END was already taken off the queue, keep consuming
+    // so producers never block on a dead writer
+    private void fail(IOException e, boolean ended) {
+        failure = e;
+        if (!ended) {
+            drainAfterFailure();
+        }
+    }
+
+    private void drainAfterFailure() {
+        try {
+            while (queue.take() != END) {
+                // discard
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void format(mydns.ResolutionResult result) throws IOException {
+        List<mydns.ResourceRecord> records = new ArrayList<>();
+        long ttl = -1;
+        for (mydns.ResourceRecord rr : result.answers) {
+            if (rr.type == 1 && rr.rdata.length == 4) { // A record
+                records.add(rr);
+                ttl = ttl < 0 ? rr.ttl : Math.min(ttl, rr.ttl);
+            }
+        }
+
+        if (format.equals(BINARY)) {
+            writeBinary(result, records, ttl);
+            return;
+        }
+
+        List<String> addresses = new ArrayList<>(records.size());
+        for (mydns.ResourceRecord rr : records) {
+            addresses.add(mydns.parseIPAddress(rr.rdata));
+        }
+
+        line.setLength(0);
+        if (format.equals(JSONL)) {
+            formatJson(result, addresses, ttl);
+        } else {
+            formatCsv(result, addresses, ttl);
+        }
+        line.append('\n');
+        out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void formatJson(mydns.ResolutionResult result, List<String> addresses, long ttl) {
+        line.append("{\"name\":");
+        jsonString(result.domainName);
+        line.append(",\"type\":\"A\",\"addresses\":[");
+        for (int i = 0; i < addresses.size(); i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append('"').append(addresses.get(i)).append('"');
+        }
+        line.append("],\"ttl\":");
+        if (ttl < 0) {
+            line.append("null");
+        } else {
+            line.append(ttl);
+        }
+        line.append(",\"hops\":").append(result.hops);
+        line.append(",\"latency_ms\":");
+        appendMillis(result.elapsedNanos);
+        line.append(",\"dnssec\":");
+        jsonString(result.security);
+        line.append(",\"error\":");
+        jsonString(result.error);
+        line.append('}');
+    }
+
+    private void jsonString(String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private void formatCsv(mydns.ResolutionResult result, List<String> addresses, long ttl) {
+        csvField(result.domainName);
+        line.append(",A,").append(String.join(";", addresses)).append(',');
+        if (ttl >= 0) {
+            line.append(ttl);
+        }
+        line.append(',').append(result.hops);
+        line.append(',');
+        appendMillis(result.elapsedNanos);
+        line.append(',');
+        csvField(result.security);
+        line.append(',');
+        csvField(result.error);
+    }
+
+    private void csvField(String value) {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            line.append(value);
+        } else {
+            line.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+    }
+
+    // Milliseconds with three decimals, without going through String.format
+    private void appendMillis(long nanos) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        line.append(micros / 1000).append('.');
+        if (fraction < 100) {
+            line.append('0');
+        }
+        if (fraction < 10) {
+            line.append('0');
+        }
+        line.append(fraction);
+    }
+
+    private void writeBinary(mydns.ResolutionResult result, List<mydns.ResourceRecord> records, long ttl)
+            throws IOException {
+        byte[] name = result.domainName.getBytes(StandardCharsets.UTF_8);
+        int nameLength = Math.min(name.length, 255);
+        int count = Math.min(records.size(), 255);
+        int status = result.error != null ? STATUS_ERROR : 0;
+        for (int i = 1; i < SECURITY.length; i++) {
+            if (SECURITY[i].equals(result.security)) {
+                status |= i << 1;
+            }
+        }
+
+        out.writeByte(nameLength);
+        out.write(name, 0, nameLength);
+        out.writeByte(status);
+        out.writeByte(Math.min(result.hops, 255));
+        out.writeInt((int) Math.min(result.elapsedNanos / 1000, 0xFFFFFFFFL));
+        out.writeInt((int) Math.max(ttl, 0));
+        out.writeByte(count);
+        for (int i = 0; i < count; i++) {
+            out.write(records.get(i).rdata, 0, 4);
+        }
+        if (result.error != null) {
+            byte[] error = result.error.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(error.length, 0xFFFF);
+            out.writeShort(length);
+            out.write(error, 0, length);
+        }
+    }
+
+    // Decode a binary result file back into JSON Lines; closes target when done
+    static void dumpBinary(String path, PrintStream target) throws IOException, InterruptedException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE));
+             resultwriter writer = new resultwriter(target, JSONL, BATCH_SIZE)) {
+            byte[] magic = new byte[BINARY_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, BINARY_MAGIC)) {
+                throw new IOException(path + " is not a binary result file");
+            }
+
+            while (true) {
+                int nameLength;
+                try {
+                    nameLength = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                mydns.ResolutionResult result = new mydns.ResolutionResult();
+                byte[] name = new byte[nameLength];
+                in.readFully(name);
+                result.domainName = new String(name, StandardCharsets.UTF_8);
+                int status = in.readUnsignedByte();
+                result.security = SECURITY[(status >> 1) & 0x03];
+                result.hops = in.readUnsignedByte();
+                result.elapsedNanos = (in.readInt() & 0xFFFFFFFFL) * 1000;
+                long ttl = in.readInt() & 0xFFFFFFFFL;
+                int count = in.readUnsignedByte();
+                for (int i = 0; i < count; i++) {
+                    byte[] address = new byte[4];
+                    in.readFully(address);
+                    result.answers.add(new mydns.ResourceRecord(result.domainName, 1, 1, ttl, 4, address));
+                }
+                if ((status & STATUS_ERROR) != 0) {
+                    byte[] error = new byte[in.readUnsignedShort()];
+                    in.readFully(error);
+                    result.error = new String(error, StandardCharsets.UTF_8);
+                }
+                writer.write(result);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: resultwriter binary-result-file");
+            System.exit(1);
+        }
+        dumpBinary(args[0], System.out);
+    }
+}